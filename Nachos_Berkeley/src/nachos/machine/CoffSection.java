@@ -202,6 +202,45 @@ public class CoffSection {
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
     }
 
+    /**
+     * Load consecutive pages of this section into physical memory with a
+     * single read of the executable. The pages need not be contiguous in
+     * physical memory. Pages past the end of the initialized data are
+     * zero-filled.
+     *
+     * @param	spn	the first page number within this segment.
+     * @param	ppns	the physical pages to load into, in order.
+     * @param	count	the number of pages to load.
+     */
+    public void loadPages(int spn, int[] ppns, int count) {
+	Lib.assertTrue(file != null);
+
+	Lib.assertTrue(count>0 && spn>=0 && spn+count<=numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] memory = Machine.processor().getMemory();
+	int faddr = contentOffset + spn*pageSize;
+	int initlen = 0;
+
+	if (initialized)
+	    initlen = Math.min(size - spn*pageSize, count*pageSize);
+
+	byte[] buf = new byte[initlen];
+	if (initlen > 0)
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+
+	    int paddr = ppns[i]*pageSize;
+	    int len = Math.max(0, Math.min(initlen - i*pageSize, pageSize));
+
+	    System.arraycopy(buf, i*pageSize, memory, paddr, len);
+	    Arrays.fill(memory, paddr+len, paddr+pageSize, (byte) 0);
+	}
+    }
+
     /** The COFF object to which this section belongs. */
     protected Coff coff;
     /** The COFF name of this section. */
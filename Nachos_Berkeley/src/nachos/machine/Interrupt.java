@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +53,12 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[16];
+
+		idleSkipping = Config.getBoolean("Interrupt.idleSkipping", true);
+
+		if (Config.getBoolean("Interrupt.benchmark", false))
+			heapBenchmark(1000, 1000);
 	}
 
 	/**
@@ -122,16 +127,186 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Wait for the next interrupt. This method should only be called by the
+	 * kernel's idle thread, with interrupts disabled, when no other thread is
+	 * ready to run.
+	 * 
+	 * <p>
+	 * Since nothing can happen until the next interrupt is due, simulated time
+	 * jumps straight to the earliest pending interrupt, and the handlers that
+	 * are due are invoked in the usual order. The skipped time is charged to
+	 * the kernel, just as it would have been had the idle thread yielded
+	 * until then. If <tt>Interrupt.idleSkipping</tt> is set to false in the
+	 * configuration file, or no interrupt is pending, time advances by a
+	 * single tick instead.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		Stats stats = privilege.stats;
+
+		long ticks = Stats.KernelTick;
+		if (idleSkipping && numPending > 0)
+			ticks = Math.max(pending[0].time - stats.totalTicks, 0);
+
+		stats.kernelTicks += ticks;
+		stats.totalTicks += ticks;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Idle until tick " + stats.totalTicks
+					+ " ==");
+
+		checkIfDue();
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		PendingInterrupt toOccur = freeList;
+		if (toOccur != null)
+			freeList = toOccur.nextFree;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, numPending * 2);
+
+		// sift the new interrupt up from the bottom of the heap
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!toOccur.before(pending[parent]))
+				break;
+
+			pending[i] = pending[parent];
+			i = parent;
+		}
+		pending[i] = toOccur;
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap and return it to the
+	 * free list. The caller must copy out any fields it needs first.
+	 */
+	private void removeFirst() {
+		PendingInterrupt first = pending[0];
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		// sift the last interrupt down from the top of the heap
+		if (numPending > 0) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numPending)
+					break;
+				if (child + 1 < numPending
+						&& pending[child + 1].before(pending[child]))
+					child++;
+				if (!pending[child].before(last))
+					break;
+
+				pending[i] = pending[child];
+				i = child;
+			}
+			pending[i] = last;
+		}
 
-		pending.add(toOccur);
+		first.type = null;
+		first.handler = null;
+		first.nextFree = freeList;
+		freeList = first;
+	}
+
+	/**
+	 * Time the pending interrupt heap against the <tt>TreeSet</tt> it
+	 * replaced. Schedules <i>size</i> interrupts at pseudo-random times, then
+	 * repeatedly takes the earliest one off and schedules a replacement,
+	 * <i>rounds</i> times over, checking that interrupts come off in order.
+	 * The <tt>TreeSet</tt> runs the same sequence, allocating a node for each
+	 * interrupt as the old code did. Run from the constructor, before any
+	 * device has scheduled anything, if <tt>Interrupt.benchmark</tt> is set
+	 * in the configuration file. No handler is run and simulated time does
+	 * not advance.
+	 */
+	private void heapBenchmark(int size, int rounds) {
+		Random random = new Random(0);
+		Runnable handler = new Runnable() {
+			public void run() {
+			}
+		};
+
+		long startMillis = System.currentTimeMillis();
+
+		for (int i = 0; i < size; i++)
+			schedule(1 + random.nextInt(size), "benchmark", handler);
+
+		long last = 0;
+		for (int i = 0; i < size * rounds; i++) {
+			Lib.assertTrue(pending[0].time >= last);
+			last = pending[0].time;
+			removeFirst();
+
+			schedule(last - privilege.stats.totalTicks + 1
+					+ random.nextInt(size), "benchmark", handler);
+		}
+
+		while (numPending > 0)
+			removeFirst();
+
+		long heapMillis = System.currentTimeMillis() - startMillis;
+
+		random = new Random(0);
+		TreeSet<PendingInterrupt> tree = new TreeSet<PendingInterrupt>();
+		long id = 0;
+
+		startMillis = System.currentTimeMillis();
+
+		for (int i = 0; i < size; i++)
+			tree.add(benchmarkInterrupt(1 + random.nextInt(size), id++,
+					handler));
+
+		last = 0;
+		for (int i = 0; i < size * rounds; i++) {
+			PendingInterrupt first = tree.first();
+			Lib.assertTrue(first.time >= last);
+			last = first.time;
+			tree.remove(first);
+
+			tree.add(benchmarkInterrupt(last + 1 + random.nextInt(size), id++,
+					handler));
+		}
+
+		while (!tree.isEmpty())
+			tree.pollFirst();
+
+		long treeMillis = System.currentTimeMillis() - startMillis;
+
+		System.out.print(" (interrupt heap benchmark: " + size + " pending, "
+				+ (size * rounds) + " operations, heap " + heapMillis
+				+ " ms, TreeSet " + treeMillis + " ms)");
+	}
+
+	private static PendingInterrupt benchmarkInterrupt(long time, long id,
+			Runnable handler) {
+		PendingInterrupt toOccur = new PendingInterrupt();
+		toOccur.time = time;
+		toOccur.type = "benchmark";
+		toOccur.handler = handler;
+		toOccur.id = id;
+		return toOccur;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -153,6 +328,34 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	/**
+	 * Return the number of user ticks that can pass before the next pending
+	 * interrupt falls due, or 0 if every tick must be shown for the interrupt
+	 * debug flag.
+	 */
+	private long quietTicks() {
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return (pending[0].time - privilege.stats.totalTicks - 1)
+				/ Stats.UserTick;
+	}
+
+	/**
+	 * Advance the simulated time by <i>count</i> user ticks at once, which
+	 * must all pass before the next interrupt falls due.
+	 */
+	private void skipUserTicks(int count) {
+		Lib.assertTrue(count >= 0 && count <= quietTicks());
+
+		Stats stats = privilege.stats;
+		stats.userTicks += (long) count * Stats.UserTick;
+		stats.totalTicks += (long) count * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -161,27 +364,26 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || pending[0].time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
-
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		if (Lib.test(dbgInt))
+			System.out.println("Invoking interrupt handlers at time = "
+					+ time);
 
-			Lib.assertTrue(next.time <= time);
+		while (numPending > 0 && pending[0].time <= time) {
+			// the node may be reused by the handler, so take what we need
+			String type = pending[0].type;
+			Runnable handler = pending[0].handler;
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +394,11 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			PendingInterrupt toOccur = sorted[i];
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -201,12 +406,15 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * An interrupt waiting to occur. Nodes are recycled through a free list
+	 * once their interrupt occurs, so scheduling an interrupt does not
+	 * normally allocate anything.
+	 */
+	private static class PendingInterrupt implements Comparable {
+		boolean before(PendingInterrupt toOccur) {
+			return time < toOccur.time
+					|| (time == toOccur.time && id < toOccur.id);
 		}
 
 		public int compareTo(Object o) {
@@ -230,6 +438,7 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+		private PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -237,7 +446,11 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+	private boolean idleSkipping;
+	/** A binary min-heap of pending interrupts, ordered by time then id. */
+	private PendingInterrupt[] pending;
+	private int numPending = 0;
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
@@ -249,5 +462,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long quietTicks() {
+			return Interrupt.this.quietTicks();
+		}
+
+		public void skipUserTicks(int count) {
+			Interrupt.this.skipUserTicks(count);
+		}
 	}
 }
@@ -360,6 +360,16 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Return the runtime statistics, so that the kernel can count events the
+	 * hardware does not see, such as pages moved to and from swap.
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	private static Interrupt interrupt = null;
 	private static Timer timer = null;
 	private static ElevatorBank bank = null;
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -47,6 +49,17 @@ public final class Processor {
 
 	mainMemory = new byte[pageSize * numPhysPages];
 
+	if (Config.getBoolean("Processor.decodeCache", true))
+	    decodeCache = new Decoded[numPhysPages][];
+	else
+	    decodeCache = null;
+
+	// hot blocks are made of cached decoded instructions
+	if (decodeCache != null)
+	    blockThreshold = Config.getInteger("Processor.blockThreshold", 50);
+	else
+	    blockThreshold = 0;
+
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
@@ -91,7 +104,18 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	// the debug flags are fixed once the machine is running, so decide here
+	// whether every instruction needs to be traced
+	Instruction inst;
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble))
+	    inst = new TracedInstruction();
+	else if (blockThreshold > 0)
+	    inst = new BlockInstruction();
+	else
+	    inst = new Instruction();
+
+	codeEpoch++;
 	
 	while (true) {
 	    try {
@@ -175,6 +199,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushMicroTLBs();
     }
 
     /**
@@ -216,6 +241,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushMicroTLBs();
     }
 
     /**
@@ -279,6 +305,16 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Forget the translations remembered by the micro-TLBs. Called whenever
+     * the page table pointer or a TLB entry changes.
+     */
+    private void flushMicroTLBs() {
+	fetchTLB.flush();
+	loadTLB.flush();
+	storeTLB.flush();
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,21 +322,23 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * The entry used by the previous reference of the same kind is tried
+     * first, so that a run of references to one page (sequential instruction
+     * fetches, for example) skips the page table checks and the TLB search.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	stream	the micro-TLB for this kind of memory reference.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, boolean writing,
+			  MicroTLB stream)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
-
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
 	    throw new MipsException(exceptionAddressError, vaddr);
 	}
 
@@ -308,22 +346,60 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
-	TranslationEntry entry = null;
+	TranslationEntry entry = stream.entry;
+
+	// a TLB entry only changes through writeTLBEntry(), but a page table
+	// entry belongs to the kernel, so check that it is still in place
+	if (entry == null || stream.vpn != vpn ||
+	    (!usingTLB && (translations[vpn] != entry || !entry.valid))) {
+	    entry = lookupEntry(vaddr, vpn);
+	    stream.remember(vpn, entry);
+	}
+
+	// check if trying to write a read-only page
+	if (entry.readOnly && writing) {
+	    throw new MipsException(exceptionReadOnly, vaddr);
+	}
+
+	// check if physical page number is out of range
+	int ppn = entry.ppn;
+	if (ppn < 0 || ppn >= numPhysPages) {
+	    throw new MipsException(exceptionBusError, vaddr);
+	}
+
+	// set used and dirty bits as appropriate
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
 
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Find the translation entry for the specified virtual page, in the page
+     * table or the TLB, without consulting the micro-TLBs.
+     *
+     * @param	vaddr	the virtual address being translated.
+     * @param	vpn	the virtual page containing <i>vaddr</i>.
+     * @return		the translation entry.
+     * @exception	MipsException	if there is no valid entry for the page.
+     */
+    private TranslationEntry lookupEntry(int vaddr, int vpn)
+	throws MipsException {
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
-	    entry = translations[vpn];
+	    return translations[vpn];
 	}
 	// else, look through all TLB entries for matching vpn
 	else {
+	    TranslationEntry entry = null;
 	    for (int i=0; i<tlbSize; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
@@ -332,34 +408,10 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+	    return entry;
 	}
-
-	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
-
-	// check if physical page number is out of range
-	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
-
-	// set used and dirty bits as appropriate
-	entry.used = true;
-	if (writing)
-	    entry.dirty = true;
-
-	int paddr = (ppn*pageSize) + offset;
-
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
     }
 
     /**
@@ -372,20 +424,11 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size);
-
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
-
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tvalue read=0x" +
-			       Lib.toHexString(value, size*2));
-	
-	return value;
+	return Lib.bytesToInt(mainMemory,
+			      translate(vaddr, size, false, loadTLB),
+			      size);
     }
     
     /**
@@ -399,15 +442,143 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size + ", value=0x"
-			       + Lib.toHexString(value, size*2));
-
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	writePhysMem(translate(vaddr, size, true, storeTLB), size, value);
+    }
+
+    /**
+     * Write <i>value</i> to <i>size</i> bytes of main memory starting at the
+     * physical address <i>paddr</i>.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void writePhysMem(int paddr, int size, int value) {
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	if (decodeCache != null)
+	    invalidateDecodeCache(paddr / pageSize);
+    }
+
+    /**
+     * Discard any pre-decoded instructions cached for the specified physical
+     * page. Called whenever a user store modifies the page, so that code
+     * written at run time is decoded again before it executes.
+     *
+     * @param	ppn	the physical page that was written.
+     */
+    private void invalidateDecodeCache(int ppn) {
+	if (decodeCache[ppn] != null) {
+	    decodeCache[ppn] = null;
+	    privilege.stats.numDecodeInvalidations++;
+	    codeEpoch++;
+	}
+    }
+
+    /**
+     * Return the pre-decoded form of the instruction word stored at the
+     * specified physical address, decoding it and caching the result if
+     * necessary. The cached record is checked against the word actually in
+     * memory, so that pages the kernel refills directly (through
+     * <tt>getMemory()</tt>) never execute stale instructions.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word read from <i>paddr</i>.
+     * @param	fetching	<tt>true</tt> if the instruction is being
+     *				fetched, so that the lookup counts towards the
+     *				decode cache hits and misses.
+     * @return	the decoded instruction.
+     */
+    private Decoded lookupDecoded(int paddr, int value, boolean fetching) {
+	int ppn = paddr / pageSize;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Decoded[] page = decodeCache[ppn];
+	if (page == null)
+	    page = decodeCache[ppn] = new Decoded[pageSize/4];
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+
+	if (decoded != null && decoded.value == value) {
+	    if (fetching)
+		privilege.stats.numDecodeHits++;
+	    return decoded;
+	}
+
+	if (fetching)
+	    privilege.stats.numDecodeMisses++;
+	return page[index] = new Decoded(value);
+    }
+
+    /**
+     * Build a hot block starting at the specified physical address. The block
+     * runs straight through the page until a branch or jump and its delay
+     * slot, stopping short of any instruction that always traps.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the new block, or <tt>null</tt> if fewer than two
+     *		instructions qualify.
+     */
+    private Block buildBlock(int paddr) {
+	int end = Math.min((paddr/pageSize + 1) * pageSize,
+			   paddr + maxBlockLength*4);
+
+	Decoded[] code = new Decoded[maxBlockLength];
+	int length = 0;
+
+	for (int addr=paddr; addr<end; addr+=4) {
+	    // not a fetch, so the decode cache statistics are left alone
+	    Decoded decoded =
+		lookupDecoded(addr, Lib.bytesToInt(mainMemory, addr, 4), false);
+
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+
+	    // the delay slot ends the block, unless it is another branch
+	    if (length > 0 && code[length-1].isBranch()) {
+		if (!decoded.isBranch())
+		    code[length++] = decoded;
+		break;
+	    }
+
+	    code[length++] = decoded;
+	}
+
+	// a branch must not leave the block without its delay slot
+	if (length > 0 && code[length-1].isBranch())
+	    length--;
+
+	if (length < 2)
+	    return null;
+
+	privilege.stats.numBlocksBuilt++;
+
+	Block block = new Block(paddr, Arrays.copyOf(code, length));
+	block.epoch = codeEpoch;
+	return block;
+    }
+
+    /**
+     * Check that the instructions of a block still match main memory. Only
+     * needed once the kernel has had a chance to change memory directly,
+     * since user stores into a page discard its blocks.
+     *
+     * @param	block	the block to check.
+     * @return	<tt>true</tt> if the block can still be run.
+     */
+    private boolean checkBlock(Block block) {
+	for (int i=0; i<block.code.length; i++) {
+	    int value = Lib.bytesToInt(mainMemory, block.paddr + i*4, 4);
+	    if (block.code[i].value != value)
+		return false;
+	}
+
+	block.epoch = codeEpoch;
+	return true;
     }
 
     /**
@@ -546,6 +717,9 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The last translations used by instruction fetches, loads and stores. */
+    private MicroTLB fetchTLB = new MicroTLB(), loadTLB = new MicroTLB(),
+	storeTLB = new MicroTLB();
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -555,6 +729,26 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Pre-decoded instructions, indexed by physical page and then by word
+     * within the page, or <tt>null</tt> if the decode cache is disabled.
+     */
+    private Decoded[][] decodeCache;
+
+    /**
+     * The number of times a decoded instruction must start a fetch before a
+     * hot block is built from it, or 0 if hot blocks are disabled.
+     */
+    private int blockThreshold;
+    /** The most instructions in a hot block. */
+    private static final int maxBlockLength = 64;
+    /**
+     * Incremented whenever the kernel runs (for an interrupt or an exception)
+     * and whenever a user store discards decoded instructions. A hot block
+     * stops as soon as it sees a change, and is checked against memory before
+     * it runs again.
+     */
+    private int codeEpoch = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +760,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    codeEpoch++;
 	}
     }
 
@@ -584,6 +779,8 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    codeEpoch++;
+
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -607,6 +804,11 @@ public final class Processor {
 	private int cause, badVAddr;
     }	
 
+    /**
+     * An instruction being executed. This class does no tracing at all;
+     * <tt>TracedInstruction</tt> adds the output for the processor debug
+     * flags.
+     */
     private class Instruction {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
@@ -616,88 +818,67 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
+	boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	void fetch() throws MipsException {
+	    setInstruction(translate(registers[regPC], 4, false, fetchTLB));
+	}
+
+	void setInstruction(int paddr) {
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-	    value = readMem(registers[regPC], 4);
+	    if (decodeCache != null)
+		decoded = lookupDecoded(paddr, value, true);
+	    else
+		decoded = null;
 	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	int load(int vaddr, int size) throws MipsException {
+	    return readMem(vaddr, size);
+	}
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMem(vaddr, size, value);
+	}
+	
+	void decode() {
+	    if (decoded == null)
+		decoded = new Decoded(value);
+
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,12 +898,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1023,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -942,7 +1120,7 @@ public final class Processor {
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = load(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1130,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1141,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1152,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		store(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1166,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,7 +1180,7 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
@@ -1016,7 +1194,7 @@ public final class Processor {
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
 		throw new MipsException(exceptionOverflow);
@@ -1032,26 +1210,15 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1230,607 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An instruction that prints its progress as selected by the processor
+     * debug flags (<tt>p</tt>, <tt>m</tt> and <tt>M</tt>). Only used when one
+     * of those flags is set, so that ordinary execution never tests them.
+     */
+    private class TracedInstruction extends Instruction {
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    setInstruction(translate(registers[regPC], 4, false, fetchTLB));
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+
+	int load(int vaddr, int size) throws MipsException {
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=" + size);
+
+	    Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	    int value = Lib.bytesToInt(mainMemory,
+				       translate(vaddr, size, false, loadTLB),
+				       size);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, size*2));
+	
+	    return value;
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=" + size + ", value=0x"
+				   + Lib.toHexString(value, size*2));
+
+	    Lib.assertTrue(size==1 || size==2 || size==4);
+
+	    writePhysMem(translate(vaddr, size, true, storeTLB), size, value);
+	}
+
+	private int translate(int vaddr, int size, boolean writing,
+			      MicroTLB stream)
+	    throws MipsException {
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\ttranslate vaddr=0x" +
+				   Lib.toHexString(vaddr) +
+				   (writing ? ", write" : ", read..."));
+
+	    int paddr;
+	    try {
+		paddr = Processor.this.translate(vaddr, size, writing, stream);
+	    }
+	    catch (MipsException e) {
+		switch (e.cause) {
+		case exceptionAddressError:
+		    Lib.debug(dbgProcessor, "\t\talignment error");
+		    break;
+		case exceptionPageFault:
+		    Lib.debug(dbgProcessor, "\t\tpage fault");
+		    break;
+		case exceptionTLBMiss:
+		    Lib.debug(dbgProcessor, "\t\tTLB miss");
+		    break;
+		case exceptionReadOnly:
+		    Lib.debug(dbgProcessor, "\t\tread-only exception");
+		    break;
+		case exceptionBusError:
+		    Lib.debug(dbgProcessor, "\t\tbad ppn");
+		    break;
+		}
+		throw e;
+	    }
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	    return paddr;
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * An instruction that runs hot blocks. Each fetch counts against the
+     * decoded instruction fetched, and once one has started
+     * <tt>blockThreshold</tt> fetches, the straight-line code from there to
+     * the next branch becomes a block.
+     *
+     * <p>
+     * Building a block translates each of its instructions into an
+     * <tt>Op</tt> that does only what that instruction needs, with its
+     * registers, immediate and flags already picked out. The ops of a block
+     * run back to back, without fetching or translating the PC again.
+     * Instructions with no op of their own go through the ordinary
+     * <tt>decode()</tt>, <tt>execute()</tt> and <tt>writeBack()</tt>.
+     *
+     * <p>
+     * The clock still advances one tick per instruction. When no interrupt
+     * can fall due before the block ends, the ticks are charged all at once
+     * afterwards; otherwise the clock ticks after each op, and the block is
+     * abandoned as soon as the kernel runs.
+     */
+    private class BlockInstruction extends Instruction {
+	public void run() throws MipsException {
+	    int paddr = translate(registers[regPC], 4, false, fetchTLB);
+	    setInstruction(paddr);
+
+	    Block block = decoded.block;
+	    if (block == null && ++decoded.heat == blockThreshold)
+		block = decoded.block = buildBlock(paddr);
+
+	    if (block != null && block.epoch != codeEpoch &&
+		!checkBlock(block)) {
+		decoded.block = block = null;
+		decoded.heat = 0;
+	    }
+
+	    // a block only runs in order, so not from the delay slot of a
+	    // branch taken outside it
+	    if (block == null || registers[regNextPC] != registers[regPC]+4) {
+		decode();
+		execute();
+		writeBack();
+		return;
+	    }
+
+	    if (block.ops == null) {
+		block.ops = new Op[block.code.length];
+		for (int i=0; i<block.code.length; i++)
+		    block.ops[i] = translateOp(block.code[i]);
+	    }
+
+	    Op[] ops = block.ops;
+	    int epoch = codeEpoch;
+
+	    // if no interrupt can come due before the block ends, run it
+	    // without ticking, and charge the ticks afterwards
+	    if (privilege.interrupt.quietTicks() >= ops.length) {
+		int done = 0;
+		try {
+		    while (done < ops.length) {
+			ops[done].run();
+			done++;
+			if (codeEpoch != epoch)
+			    break;
+		    }
+		}
+		finally {
+		    privilege.stats.numBlockInstructions += done;
+
+		    // the caller ticks for the last instruction, or for the
+		    // one that raised an exception
+		    privilege.interrupt.skipUserTicks(done < ops.length ? done
+						      : done-1);
+		}
+
+		if (done < ops.length)
+		    super.run();
+		return;
+	    }
+
+	    for (int i=0; true; i++) {
+		ops[i].run();
+
+		privilege.stats.numBlockInstructions++;
+
+		// the last tick is left to the caller, as for any instruction
+		if (i == ops.length-1)
+		    break;
+
+		privilege.interrupt.tick(false);
+
+		// the kernel ran or code changed, so the rest of the block may
+		// be stale; go back to fetching
+		if (codeEpoch != epoch) {
+		    super.run();
+		    break;
+		}
+	    }
+	}
+
+	/**
+	 * Return the op that runs the specified instruction.
+	 */
+	private Op translateOp(Decoded decoded) {
+	    switch (decoded.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+	    case Mips.LUI:
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+		return new AluOp(decoded);
+	    case Mips.MULT:
+	    case Mips.DIV:
+		return new MulDivOp(decoded);
+	    case Mips.LOAD:
+		return new LoadOp(decoded);
+	    case Mips.STORE:
+		return new StoreOp(decoded);
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+	    case Mips.JUMP:
+		return new BranchOp(decoded);
+	    default:
+		return new Op(decoded);
+	    }
+	}
+
+	/**
+	 * One instruction of a hot block. This base class runs the instruction
+	 * the ordinary way; the subclasses compute the same results directly.
+	 */
+	private class Op {
+	    Op(Decoded decoded) {
+		this.decoded = decoded;
+
+		rs = decoded.rs;
+		rt = decoded.rt;
+		imm = decoded.imm;
+		dstReg = decoded.dstReg;
+		operation = decoded.operation;
+		flags = decoded.flags;
+	    }
+
+	    void run() throws MipsException {
+		BlockInstruction.this.decoded = decoded;
+		value = decoded.value;
+
+		decode();
+		execute();
+		writeBack();
+	    }
+
+	    boolean test(int flag) {
+		return Lib.test(flag, flags);
+	    }
+
+	    final Decoded decoded;
+	    final int rs, rt, imm, dstReg, operation, flags;
+	}
+
+	/**
+	 * An arithmetic, logical, shift or compare instruction, or a move from
+	 * the low or high register.
+	 */
+	private class AluOp extends Op {
+	    AluOp(Decoded decoded) {
+		super(decoded);
+
+		sh = decoded.sh;
+		shiftImm = test(Mips.SRC1SH);
+		src2Imm = test(Mips.SRC2IMM);
+		unsigned = test(Mips.UNSIGNED);
+		overflow = test(Mips.OVERFLOW);
+	    }
+
+	    void run() throws MipsException {
+		long src1 = shiftImm ? sh : registers[rs];
+		long src2 = src2Imm ? imm : registers[rt];
+		if (unsigned) {
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
+
+		long dst;
+		switch (operation) {
+		case Mips.ADD:	dst = src1 + src2;		break;
+		case Mips.SUB:	dst = src1 - src2;		break;
+		case Mips.SLL:	dst = src2 << (src1&0x1F);	break;
+		case Mips.SRA:	dst = src2 >> (src1&0x1F);	break;
+		case Mips.SRL:	dst = src2 >>> (src1&0x1F);	break;
+		case Mips.SLT:	dst = (src1<src2) ? 1 : 0;	break;
+		case Mips.AND:	dst = src1 & src2;		break;
+		case Mips.OR:	dst = src1 | src2;		break;
+		case Mips.NOR:	dst = ~(src1 | src2);		break;
+		case Mips.XOR:	dst = src1 ^ src2;		break;
+		case Mips.MFLO:	dst = registers[regLo];		break;
+		case Mips.MFHI:	dst = registers[regHi];		break;
+		default:	dst = imm << 16;		break;
+		}
+
+		if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		    throw new MipsException(exceptionOverflow);
+
+		finishLoad();
+
+		if (dstReg != 0)
+		    registers[dstReg] = (int) dst;
+
+		advancePC(registers[regNextPC]+4);
+	    }
+
+	    final int sh;
+	    final boolean shiftImm, src2Imm, unsigned, overflow;
+	}
+
+	/**
+	 * A multiplication or division, which leaves its results in the low and
+	 * high registers.
+	 */
+	private class MulDivOp extends Op {
+	    MulDivOp(Decoded decoded) {
+		super(decoded);
+
+		unsigned = test(Mips.UNSIGNED);
+	    }
+
+	    void run() throws MipsException {
+		long src1 = registers[rs];
+		long src2 = registers[rt];
+		if (unsigned) {
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
+
+		if (operation == Mips.MULT) {
+		    long dst = src1 * src2;
+		    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+		    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+		}
+		else {
+		    if (src2 == 0)
+			throw new MipsException(exceptionOverflow);
+
+		    registers[regLo] = (int) (src1 / src2);
+		    registers[regHi] = (int) (src1 % src2);
+		    if (registers[regLo]*src2 + registers[regHi] != src1)
+			throw new MipsException(exceptionOverflow);
+		}
+
+		finishLoad();
+
+		advancePC(registers[regNextPC]+4);
+	    }
+
+	    final boolean unsigned;
+	}
+
+	/**
+	 * A load of a byte, halfword or word, which completes after the next
+	 * instruction.
+	 */
+	private class LoadOp extends Op {
+	    LoadOp(Decoded decoded) {
+		super(decoded);
+
+		size = decoded.size;
+		unsigned = test(Mips.UNSIGNED);
+	    }
+
+	    void run() throws MipsException {
+		int value = readMem(registers[rs] + imm, size);
+		if (!unsigned)
+		    value = Lib.extend(value, 0, size*8);
+
+		delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+		advancePC(registers[regNextPC]+4);
+	    }
+
+	    final int size;
+	    final boolean unsigned;
+	}
+
+	/**
+	 * A store of a byte, halfword or word.
+	 */
+	private class StoreOp extends Op {
+	    StoreOp(Decoded decoded) {
+		super(decoded);
+
+		size = decoded.size;
+	    }
+
+	    void run() throws MipsException {
+		writeMem(registers[rs] + imm, size, registers[rt]);
+
+		finishLoad();
+
+		advancePC(registers[regNextPC]+4);
+	    }
+
+	    final int size;
+	}
+
+	/**
+	 * A conditional branch or a jump, with or without a link.
+	 */
+	private class BranchOp extends Op {
+	    BranchOp(Decoded decoded) {
+		super(decoded);
+
+		format = decoded.format;
+		branchOffset = decoded.branchOffset;
+		target = decoded.target;
+		link = test(Mips.LINK);
+		writesDst = test(Mips.DST) && dstReg != 0;
+	    }
+
+	    void run() throws MipsException {
+		int src1 = registers[rs];
+		int src2 = registers[rt];
+
+		boolean branch;
+		switch (operation) {
+		case Mips.BEQ:	branch = (src1 == src2);	break;
+		case Mips.BNE:	branch = (src1 != src2);	break;
+		case Mips.BGEZ:	branch = (src1 >= 0);		break;
+		case Mips.BGTZ:	branch = (src1 > 0);		break;
+		case Mips.BLEZ:	branch = (src1 <= 0);		break;
+		case Mips.BLTZ:	branch = (src1 < 0);		break;
+		default:	branch = true;			break;
+		}
+
+		int jtarget;
+		if (format == Mips.RFMT)
+		    jtarget = src1;
+		else if (format == Mips.IFMT)
+		    jtarget = registers[regNextPC] + branchOffset;
+		else
+		    jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+
+		finishLoad();
+
+		int nextPC = registers[regNextPC]+4;
+
+		if (link && writesDst)
+		    registers[dstReg] = nextPC;
+
+		advancePC(branch ? jtarget : nextPC);
+	    }
+
+	    final int format, branchOffset, target;
+	    final boolean link, writesDst;
+	}
+    }
+
+    /**
+     * A run of straight-line instructions within one physical page, ending
+     * with a branch or jump and its delay slot, kept with the decoded form of
+     * its first instruction.
+     */
+    private static class Block {
+	Block(int paddr, Decoded[] code) {
+	    this.paddr = paddr;
+	    this.code = code;
+	}
+
+	final int paddr;
+	final Decoded[] code;
+	/** The ops that run the block, once it has been translated. */
+	BlockInstruction.Op[] ops = null;
+	/** The <tt>codeEpoch</tt> at which the block last matched memory. */
+	int epoch;
+    }
+    /**
+     * A single-entry cache of the last translation used by one stream of
+     * memory references.
+     */
+    private static class MicroTLB {
+	void remember(int vpn, TranslationEntry entry) {
+	    this.vpn = vpn;
+	    this.entry = entry;
+	}
+
+	void flush() {
+	    entry = null;
+	}
+	
+	int vpn;
+	TranslationEntry entry = null;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the register file. Computed once per instruction word
+     * and cached in <tt>decodeCache</tt>, along with the profile used to find
+     * hot blocks.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	boolean isBranch() {
+	    return Lib.test(Mips.BRANCH, flags);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+
+	/** The number of fetches that have started at this instruction. */
+	int heat = 0;
+	/** The hot block starting at this instruction, if one was built. */
+	Block block = null;
+    }
+
     private static class Mips {
 	Mips() {
 	}
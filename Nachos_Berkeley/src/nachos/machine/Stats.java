@@ -29,6 +29,27 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numDecodeHits + numDecodeMisses > 0)
+	    System.out.println("Decode cache: hits " + numDecodeHits
+			       + ", misses " + numDecodeMisses
+			       + ", invalidations " + numDecodeInvalidations);
+	if (numBlocksBuilt > 0)
+	    System.out.println("Hot blocks: built " + numBlocksBuilt
+			       + ", instructions " + numBlockInstructions);
+	if (numSwapIns + numSwapOuts > 0)
+	    System.out.println("Swap: pages in " + numSwapIns
+			       + ", pages out " + numSwapOuts
+			       + ", writes " + numSwapWrites);
+	if (numReadAheads > 0)
+	    System.out.println("Read-ahead: pages " + numReadAheads
+			       + ", used " + numReadAheadHits);
+	if (numSTLBHits > 0)
+	    System.out.println("Software TLB: hits " + numSTLBHits);
+	if (numSuspensions > 0)
+	    System.out.println("Load control: suspensions " + numSuspensions);
+	if (numFrameAllocations > 0)
+	    System.out.println("Frames: allocated " + numFrameAllocations
+			       + ", peak in use " + maxFramesInUse);
     }
 
     /**
@@ -61,6 +82,57 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of instructions whose pre-decoded form was found in
+     * the processor's decode cache.
+     */
+    public long numDecodeHits = 0;
+    /**
+     * The total number of instructions that had to be decoded because they
+     * were not in the processor's decode cache.
+     */
+    public long numDecodeMisses = 0;
+    /**
+     * The total number of times a physical page's decoded instructions were
+     * discarded because a user program wrote to the page.
+     */
+    public int numDecodeInvalidations = 0;
+    /** The total number of hot blocks the processor has built. */
+    public int numBlocksBuilt = 0;
+    /**
+     * The total number of user instructions executed from hot blocks rather
+     * than fetched one at a time.
+     */
+    public long numBlockInstructions = 0;
+    /** The total number of pages the kernel has read back from swap. */
+    public int numSwapIns = 0;
+    /** The total number of pages the kernel has written to swap. */
+    public int numSwapOuts = 0;
+    /**
+     * The total number of writes to swap. Neighbouring dirty pages are
+     * written together, so this can be less than <tt>numSwapOuts</tt>.
+     */
+    public int numSwapWrites = 0;
+    /**
+     * The total number of pages the kernel has read in before they were
+     * needed, along with a faulting page.
+     */
+    public int numReadAheads = 0;
+    /** The total number of read-ahead pages that were later used. */
+    public int numReadAheadHits = 0;
+    /**
+     * The total number of TLB misses refilled from the kernel's software TLB.
+     */
+    public int numSTLBHits = 0;
+    /**
+     * The total number of times the kernel has suspended a process because
+     * the frame quotas of the running processes did not fit in memory.
+     */
+    public int numSuspensions = 0;
+    /** The total number of physical pages the kernel has given processes. */
+    public int numFrameAllocations = 0;
+    /** The largest number of physical pages processes have held at once. */
+    public int maxFramesInUse = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
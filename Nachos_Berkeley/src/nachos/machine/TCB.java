@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -40,6 +41,17 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String handoff = Config.getString("TCB.handoff", "monitor");
+		if (handoff.equals("park"))
+			parkHandoff = true;
+		else
+			Lib.assertTrue(handoff.equals("monitor"),
+					"TCB.handoff must be monitor or park");
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(maxThreads > 0 && stackSize >= 0);
 	}
 
 	/**
@@ -103,7 +115,8 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = new Thread(null, tcbTarget, "TCB",
+							stackSize);
 				}
 			});
 
@@ -137,6 +150,16 @@ public final class TCB {
 		return currentTCB;
 	}
 
+	/**
+	 * Return the maximum number of started, non-destroyed TCB's that can be
+	 * in existence.
+	 * 
+	 * @return the limit on the number of TCB's.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
+	}
+
 	/**
 	 * Context switch between the current TCB and this TCB. This TCB will become
 	 * the new current TCB. It is acceptable for this TCB to be the current TCB.
@@ -294,8 +317,21 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * If <tt>TCB.handoff</tt> is <tt>park</tt>, the Java thread parks itself
+	 * instead, and <tt>interrupt()</tt> unparks it directly.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (parkHandoff) {
+			while (!running)
+				LockSupport.park(this);
+		} else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -310,7 +346,16 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (parkHandoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		} else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -338,9 +383,25 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set once, from <tt>TCB.maxThreads</tt> in the configuration
+	 * file, when the TCB class is given its privilege.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/**
+	 * The stack size requested for each Java thread, from
+	 * <tt>TCB.stackSize</tt>. Zero means the JVM default; a small stack lets
+	 * many more threads exist at once.
+	 */
+	private static int stackSize;
+
+	/**
+	 * <tt>true</tt> if TCBs hand the CPU to each other with
+	 * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> (<tt>TCB.handoff =
+	 * park</tt>), or <tt>false</tt> if they use the monitor bound to each TCB
+	 * (<tt>TCB.handoff = monitor</tt>, the default).
+	 */
+	private static boolean parkHandoff = false;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -396,9 +457,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because a parked thread does not get to synchronize
+	 * on a monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
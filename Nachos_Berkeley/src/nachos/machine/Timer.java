@@ -39,6 +39,12 @@ public final class Timer {
 			}
 		};
 
+		wakeupInterrupt = new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		};
+
 		scheduleInterrupt();
 	}
 
@@ -53,6 +59,37 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as a wakeup interrupt handler. The wakeup
+	 * interrupt handler is called when the time requested with
+	 * <tt>setWakeup()</tt> is reached.
+	 * 
+	 * @param handler
+	 *            the wakeup interrupt handler.
+	 */
+	public void setWakeupHandler(Runnable handler) {
+		this.wakeupHandler = handler;
+	}
+
+	/**
+	 * Request a one-shot wakeup interrupt at the specified time, in addition
+	 * to the periodic timer interrupts. If an earlier wakeup is already
+	 * pending, nothing is done, since the wakeup handler can request the next
+	 * one when it runs. A time that has already passed gets a wakeup on the
+	 * next tick.
+	 * 
+	 * @param time
+	 *            the time at which the wakeup handler should be called.
+	 */
+	public void setWakeup(long time) {
+		if (time >= nextWakeup)
+			return;
+
+		nextWakeup = time;
+		privilege.interrupt.schedule(Math.max(time - getTime(), 1), "wakeup",
+				wakeupInterrupt);
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -72,6 +109,17 @@ public final class Timer {
 			handler.run();
 	}
 
+	private void wakeupInterrupt() {
+		// an earlier request can overtake this one; then it is stale
+		if (getTime() < nextWakeup)
+			return;
+
+		nextWakeup = Long.MAX_VALUE;
+
+		if (wakeupHandler != null)
+			wakeupHandler.run();
+	}
+
 	private void scheduleInterrupt() {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
@@ -86,7 +134,10 @@ public final class Timer {
 	private long lastTimerInterrupt;
 	private Runnable timerInterrupt;
 	private Runnable autoGraderInterrupt;
+	private Runnable wakeupInterrupt;
+	private long nextWakeup = Long.MAX_VALUE;
 
 	private Privilege privilege;
 	private Runnable handler = null;
+	private Runnable wakeupHandler = null;
 }
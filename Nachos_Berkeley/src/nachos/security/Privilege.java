@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before an interrupt
+	 * falls due.
+	 *
+	 * @return	the number of ticks that <tt>skipUserTicks()</tt> may
+	 *		advance.
+	 */
+	public long quietTicks();
+
+	/**
+	 * Advance the simulated time by several user ticks at once. Only allowed
+	 * when no interrupt falls due in that time, so that it is the same as
+	 * calling <tt>tick(false)</tt> <i>count</i> times.
+	 *
+	 * @param	count	the number of user ticks to advance.
+	 */
+	public void skipUserTicks(int count);
     }
 
     /**
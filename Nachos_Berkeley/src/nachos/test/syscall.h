@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -224,10 +226,22 @@ int unlink(char *name);
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
  *
+ * address must be page-aligned and lie above the program's own pages, and
+ * the map must not overlap another map. An empty file cannot be mapped.
+ * Pages are read from the file only when they are first touched.
+ *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map starting at address, flushing its dirty pages to disk. The
+ * file descriptor stays open, and read() and write() can be used on it again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +271,16 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a new process running the same program as the current process, with
+ * a copy of its memory. The copy is made lazily: the two processes share each
+ * page until one of them writes it. Both processes return from fork().
+ *
+ * Returns 0 in the child, and the child's process ID in the parent. Returns
+ * -1 if the child could not be created.
+ */
+int fork();
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,18 +1,23 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hashed timing wheel: a ring of buckets, each
+ * covering a few ticks, that the alarm sweeps as time passes. Adding a sleeper
+ * takes constant time, and the timer's one-shot wakeup is set for the earliest
+ * deadline, so threads wake up when their time comes rather than at the next
+ * periodic timer interrupt.
  */
 public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
@@ -22,6 +27,14 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+
+		Machine.timer().setWakeupHandler(new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		});
+
+		lastSlot = Machine.timer().getTime() / slotTicks;
 	}
 
 	/**
@@ -31,65 +44,167 @@ public class Alarm {
 	 * should be run.
 	 */
 	public void timerInterrupt() {
-		// ----triplecq----
-		long currentTime = Machine.timer().getTime();
 		boolean intStatus = Machine.interrupt().disable();
 		// wake up threads
-		while (!waitQueue.isEmpty() && waitQueue.peek().waketime <= currentTime) {
-			ThreadTime threadTime = waitQueue.poll();
-			KThread thread = threadTime.thread;
-			if (thread != null)
-				thread.ready();
-		}
+		wakeThreads();
 		// tell current thread to yield
+		ThreadedKernel.scheduler.threadPreempted(KThread.currentThread());
 		KThread.yield();
 		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
-	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 * The wakeup interrupt handler, called when the earliest deadline
+	 * requested from the timer is reached.
+	 */
+	private void wakeupInterrupt() {
+		armedTime = Long.MAX_VALUE;
+		wakeThreads();
+	}
+
+	/**
+	 * Put the current thread to sleep for at least <i>x</i> ticks. The thread
+	 * is woken up (placed in the scheduler ready set) by the timer's wakeup
+	 * interrupt as soon as
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x
 	 *            the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// ----triplecq----
-		long wakeTime = Machine.timer().getTime() + x;
-		KThread thread = KThread.currentThread();
-		ThreadTime threadTime = new ThreadTime(thread, wakeTime);
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueue.add(threadTime);
-		thread.sleep();
+
+		long time = Machine.timer().getTime();
+		long wakeTime = time + Math.max(x, 0);
+
+		Sleeper sleeper = freeSleepers;
+		if (sleeper != null)
+			freeSleepers = sleeper.next;
+		else
+			sleeper = new Sleeper();
+
+		sleeper.thread = KThread.currentThread();
+		sleeper.wakeTime = wakeTime;
+
+		int bucket = (int) (wakeTime / slotTicks) & (wheelSize - 1);
+		sleeper.next = wheel[bucket];
+		wheel[bucket] = sleeper;
+		numSleepers++;
+
+		if (wakeTime < armedTime) {
+			armedTime = wakeTime;
+			Machine.timer().setWakeup(wakeTime);
+		}
+
+		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
 
-	// ----triplecq----
-	// Inner private class implements Comparable
-	private class ThreadTime implements Comparable<ThreadTime> {
-		public ThreadTime(KThread thread, long waketime) {
-			this.thread = thread;
-			this.waketime = waketime;
+	/**
+	 * Sweep the buckets passed since the last sweep, readying every thread
+	 * whose time has come, and make sure a wakeup is set for the earliest
+	 * remaining deadline.
+	 */
+	private void wakeThreads() {
+		long time = Machine.timer().getTime();
+		long nowSlot = time / slotTicks;
+
+		// the bucket for lastSlot may only have been partly due last time
+		long firstSlot = Math.max(lastSlot, nowSlot - wheelSize + 1);
+		for (long slot = firstSlot; slot <= nowSlot; slot++) {
+			int bucket = (int) slot & (wheelSize - 1);
+
+			Sleeper previous = null;
+			Sleeper sleeper = wheel[bucket];
+			while (sleeper != null) {
+				Sleeper next = sleeper.next;
+
+				if (sleeper.wakeTime <= time) {
+					if (previous == null)
+						wheel[bucket] = next;
+					else
+						previous.next = next;
+
+					sleeper.thread.ready();
+					sleeper.thread = null;
+					sleeper.next = freeSleepers;
+					freeSleepers = sleeper;
+					numSleepers--;
+				} else {
+					previous = sleeper;
+				}
+
+				sleeper = next;
+			}
+		}
+
+		lastSlot = nowSlot;
+
+		// a pending wakeup is never later than any remaining deadline, so
+		// only ask for another once the last one has gone off
+		if (numSleepers > 0 && armedTime == Long.MAX_VALUE) {
+			armedTime = nextWakeTime(nowSlot);
+			Machine.timer().setWakeup(armedTime);
+		}
+	}
+
+	/**
+	 * Return the earliest deadline of any sleeping thread. Usually this is in
+	 * the first non-empty bucket after <tt>nowSlot</tt>; a deadline more than a
+	 * full turn of the wheel away needs a search of every bucket.
+	 */
+	private long nextWakeTime(long nowSlot) {
+		for (long slot = nowSlot; slot < nowSlot + wheelSize; slot++) {
+			long earliest = Long.MAX_VALUE;
+			int bucket = (int) slot & (wheelSize - 1);
+			for (Sleeper sleeper = wheel[bucket]; sleeper != null;
+					sleeper = sleeper.next) {
+				if (sleeper.wakeTime / slotTicks == slot)
+					earliest = Math.min(earliest, sleeper.wakeTime);
+			}
+
+			if (earliest != Long.MAX_VALUE)
+				return earliest;
 		}
 
-		public int compareTo(ThreadTime threadtime) {
-			if (this.waketime > threadtime.waketime)
-				return 1;
-			else if (this.waketime < threadtime.waketime)
-				return -1;
-			else
-				return 0;
+		long earliest = Long.MAX_VALUE;
+		for (int bucket = 0; bucket < wheelSize; bucket++) {
+			for (Sleeper sleeper = wheel[bucket]; sleeper != null;
+					sleeper = sleeper.next)
+				earliest = Math.min(earliest, sleeper.wakeTime);
 		}
 
+		return earliest;
+	}
+
+	/**
+	 * A sleeping thread and the time it should wake up. Sleepers are chained
+	 * within a bucket, and reused through a free list once they wake.
+	 */
+	private static class Sleeper {
 		private KThread thread;
-		private long waketime;
+		private long wakeTime;
+		private Sleeper next;
 	}
 
-	private PriorityQueue<ThreadTime> waitQueue = new PriorityQueue<ThreadTime>();
+	/** The number of buckets in the wheel; must be a power of two. */
+	private static final int wheelSize = 256;
+	/** The number of ticks covered by each bucket. */
+	private static final int slotTicks = 16;
+
+	private Sleeper[] wheel = new Sleeper[wheelSize];
+	private Sleeper freeSleepers = null;
+	private int numSleepers = 0;
+
+	/** The slot (time divided by <tt>slotTicks</tt>) of the last sweep. */
+	private long lastSlot;
+	/**
+	 * The time of the wakeup requested from the timer, or
+	 * <tt>Long.MAX_VALUE</tt> if none is pending.
+	 */
+	private long armedTime = Long.MAX_VALUE;
 }
@@ -254,8 +254,10 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
+			ThreadedKernel.scheduler.threadBlocked(currentThread);
+		}
 
 		runNextThread();
 	}
@@ -309,14 +311,20 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * The idle thread keeps interrupts disabled, so once <tt>yield()</tt>
+	 * returns to it, no other thread can be ready and it lets the interrupt
+	 * controller skip ahead to the next interrupt.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					Machine.interrupt().disable();
 					yield();
+					Machine.interrupt().idle();
+				}
 			}
 		});
 		idleThread.setName("idle");
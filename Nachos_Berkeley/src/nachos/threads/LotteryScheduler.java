@@ -2,24 +2,23 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
@@ -33,16 +32,350 @@ public class LotteryScheduler extends PriorityScheduler {
 	public LotteryScheduler() {
 	}
 
+	/**
+	 * Allocate a new lottery scheduler that draws from its own random number
+	 * generator, leaving the machine's <tt>Lib.random()</tt> stream alone.
+	 *
+	 * @param random
+	 *            the source of lottery draws.
+	 */
+	private LotteryScheduler(Random random) {
+		this.random = random;
+	}
+
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority
 	 *            <tt>true</tt> if this queue should transfer tickets from
 	 *            waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority != priorityMaximum);
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority != priorityMinimum);
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The source of lottery draws, or <tt>null</tt> to use
+	 * <tt>Lib.random()</tt>.
+	 */
+	private Random random = null;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Test ticket donation and the fairness of the draw, using a scheduler
+	 * with its own random number generator. Run by
+	 * <tt>ThreadedKernel.selfTest()</tt> only if
+	 * <tt>LotteryScheduler.selfTest</tt> is set in the configuration file.
+	 */
+	public static void selfTest() {
+		System.out.println("---------LotteryScheduler Test---------");
+		LotteryScheduler ls = new LotteryScheduler(new Random(0));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// tickets add up through a chain of holders
+		ThreadQueue queue1 = ls.newThreadQueue(true);
+		ThreadQueue queue2 = ls.newThreadQueue(true);
+		KThread holder = new KThread().setName("holder");
+		KThread middle = new KThread().setName("middle");
+		KThread waiter1 = new KThread().setName("waiter1");
+		KThread waiter2 = new KThread().setName("waiter2");
+
+		queue1.acquire(holder);
+		queue2.acquire(middle);
+		queue1.waitForAccess(middle);
+		ls.setPriority(waiter1, 5);
+		ls.setPriority(waiter2, 10);
+		queue2.waitForAccess(waiter1);
+		queue2.waitForAccess(waiter2);
+		System.out.println("holder tickets=" + ls.getEffectivePriority(holder)
+				+ ", middle tickets=" + ls.getEffectivePriority(middle));
+
+		KThread winner = queue2.nextThread();
+		System.out.println(winner.getName() + " won queue2: holder tickets="
+				+ ls.getEffectivePriority(holder) + ", middle tickets="
+				+ ls.getEffectivePriority(middle));
+
+		// draw repeatedly among threads holding 1, 2 and 7 tickets
+		ThreadQueue queue3 = ls.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] tickets = { 1, 2, 7 };
+		int[] wins = new int[3];
+		for (int i = 0; i < 3; i++) {
+			threads[i] = new KThread().setName("lottery" + i);
+			ls.setPriority(threads[i], tickets[i]);
+			queue3.waitForAccess(threads[i]);
+		}
+		for (int n = 0; n < 10000; n++) {
+			KThread thread = queue3.nextThread();
+			for (int i = 0; i < 3; i++) {
+				if (threads[i] == thread)
+					wins[i]++;
+			}
+			queue3.waitForAccess(thread);
+		}
+		for (int i = 0; i < 3; i++)
+			System.out.println(threads[i].getName() + " (" + tickets[i]
+					+ " tickets) won " + wins[i] / 100 + "% of draws");
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("---------End LotteryScheduler Test---------\n");
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+	 * so adding a thread, changing its tickets, and drawing the winner all
+	 * take logarithmic time, whatever the number of tickets.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Draw the winning thread, and give it access to the resource guarded
+		 * by this queue.
+		 *
+		 * @return the winning thread, or <tt>null</tt> if no thread is
+		 *         waiting.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Entry entry = draw();
+			if (entry == null) {
+				release();
+				return null;
+			}
+
+			removeSlot(entry);
+			entry.threadState.acquire(this);
+
+			return entry.threadState.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue. The lottery is drawn
+		 * here, and the result holds until the queue changes.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			Entry entry = draw();
+			if (entry == null)
+				return null;
+
+			return entry.threadState;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.println(slots[i].threadState + " ");
+			}
+		}
+
+		/**
+		 * Return the number of tickets this queue donates to its holder: the
+		 * sum of the effective tickets of all waiting threads, or zero if
+		 * this queue does not transfer tickets.
+		 */
+		int donation() {
+			if (!transferPriority)
+				return 0;
+
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		void add(Entry entry) {
+			if (numFree == 0)
+				grow();
+
+			entry.index = freeSlots[--numFree];
+			slots[entry.index] = entry;
+			weights[entry.index] = 0;
+			setWeight(entry.index, entry.threadState.effectivePriority);
+
+			winner = null;
+		}
+
+		void reposition(Entry entry) {
+			setWeight(entry.index, entry.threadState.effectivePriority);
+
+			winner = null;
+		}
+
+		private void removeSlot(Entry entry) {
+			setWeight(entry.index, 0);
+			slots[entry.index] = null;
+			freeSlots[numFree++] = entry.index;
+
+			entry.threadState.entries.remove(entry);
+			winner = null;
+
+			donationChanged();
+		}
+
+		private Entry draw() {
+			if (winner == null && totalTickets > 0) {
+				double draw = (random != null) ? random.nextDouble()
+						: Lib.random();
+				long ticket = (long) (draw * totalTickets);
+				if (ticket >= totalTickets)
+					ticket = totalTickets - 1;
+
+				winner = slots[find(ticket)];
+			}
+
+			return winner;
+		}
+
+		/**
+		 * Set the number of tickets held by the thread in the specified slot,
+		 * updating the Fenwick tree by the difference.
+		 */
+		private void setWeight(int slot, long weight) {
+			long delta = weight - weights[slot];
+			weights[slot] = weight;
+			totalTickets += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot holding the specified ticket, numbering the tickets
+		 * of all the slots in order from zero.
+		 */
+		private int find(long ticket) {
+			int position = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				int next = position + step;
+				if (next <= slots.length && tree[next] <= ticket) {
+					position = next;
+					ticket -= tree[next];
+				}
+			}
+
+			return position;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the Fenwick tree.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int newLength = Math.max(oldLength * 2, 4);
+
+			slots = Arrays.copyOf(slots, newLength);
+			weights = Arrays.copyOf(weights, newLength);
+			freeSlots = Arrays.copyOf(freeSlots, newLength);
+			for (int i = newLength - 1; i >= oldLength; i--)
+				freeSlots[numFree++] = i;
+
+			tree = new long[newLength + 1];
+			for (int i = 1; i <= newLength; i++) {
+				tree[i] += weights[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= newLength)
+					tree[parent] += tree[i];
+			}
+		}
+
+		private Entry[] slots = new Entry[0];
+		private long[] weights = new long[0];
+		private long[] tree = new long[1];
+		private int[] freeSlots = new int[0];
+		private int numFree = 0;
+		private long totalTickets = 0;
+		private Entry winner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The effective
+	 * number of tickets is the thread's own tickets plus everything donated
+	 * by the queues it holds.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		int computeEffectivePriority() {
+			long tickets = priority;
+			for (PriorityQueue resource : resources)
+				tickets += resource.donation();
+
+			return (int) Math.min(tickets, priorityMaximum);
+		}
 	}
 }
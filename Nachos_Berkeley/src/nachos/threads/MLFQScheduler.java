@@ -0,0 +1,263 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels, and the next thread to receive access is always the one that has
+ * been waiting longest at the highest (lowest numbered) non-empty level.
+ *
+ * <p>
+ * A new thread starts at the top level. A thread that keeps getting preempted
+ * by the timer is using its whole time slice, so after enough preemptions it
+ * is moved down a level; lower levels tolerate more preemptions before the
+ * next demotion. A thread that blocks before being preempted (waiting on the
+ * console, the network, a lock or the alarm) is moved up a level. This lets
+ * interactive threads, such as a shell waiting on <tt>SynchConsole</tt>, run
+ * ahead of CPU-bound jobs like <tt>matmult</tt>.
+ *
+ * <p>
+ * To keep threads at the bottom level from starving, every thread is moved
+ * back to the top level after a fixed number of timer preemptions.
+ *
+ * <p>
+ * The number of levels is set by <tt>MLFQScheduler.levels</tt> in the
+ * configuration file (default 3), and the boost interval, in timer
+ * preemptions, by <tt>MLFQScheduler.boostInterval</tt> (default 100).
+ * Priority is not transferred through locks or joins.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 100);
+
+		Lib.assertTrue(numLevels > 0 && numLevels <= 32);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored. This scheduler does not donate priority.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread: <tt>0</tt> at the bottom
+	 * level, up to one less than the number of levels at the top.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Count a timer preemption against the specified thread, moving it down a
+	 * level once it has used up the allowance of its current level. Every
+	 * <tt>boostInterval</tt> preemptions, all threads return to the top
+	 * level.
+	 */
+	public void threadPreempted(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++numPreemptions % boostInterval == 0)
+			epoch++;
+
+		ThreadState state = getThreadState(thread);
+		int level = state.getLevel();
+
+		if (++state.preemptions >= (1 << level) && level < numLevels - 1) {
+			state.level = level + 1;
+			state.preemptions = 0;
+		}
+	}
+
+	/**
+	 * Move the specified thread up a level, since it gave up the CPU on its
+	 * own.
+	 */
+	public void threadBlocked(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		int level = state.getLevel();
+
+		if (level > 0)
+			state.level = level - 1;
+		state.preemptions = 0;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Test demotion of a CPU-bound thread and the order threads leave a
+	 * queue. Run by <tt>ThreadedKernel.selfTest()</tt> only if
+	 * <tt>MLFQScheduler.selfTest</tt> is set in the configuration file.
+	 */
+	public static void selfTest() {
+		System.out.println("---------MLFQScheduler Test---------");
+		MLFQScheduler scheduler = new MLFQScheduler();
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		KThread cpuBound = new KThread().setName("cpu-bound");
+		KThread interactive = new KThread().setName("interactive");
+		KThread fresh = new KThread().setName("new");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < 3; i++)
+			scheduler.threadPreempted(cpuBound);
+		scheduler.threadPreempted(interactive);
+		scheduler.threadBlocked(interactive);
+
+		queue.waitForAccess(cpuBound);
+		queue.waitForAccess(interactive);
+		queue.waitForAccess(fresh);
+
+		KThread thread;
+		while ((thread = queue.nextThread()) != null)
+			System.out.println(thread.getName() + " priority="
+					+ scheduler.getPriority(thread));
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("---------End MLFQScheduler Test---------\n");
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level. A bit mask of the
+	 * non-empty levels lets <tt>nextThread()</tt> find the highest one in
+	 * constant time.
+	 */
+	protected class MultiLevelQueue extends ThreadQueue {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		MultiLevelQueue() {
+			queues = new LinkedList[numLevels];
+			for (int i = 0; i < numLevels; i++)
+				queues[i] = new LinkedList<KThread>();
+
+			queueEpoch = epoch;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boostIfDue();
+
+			int level = getThreadState(thread).getLevel();
+			queues[level].add(thread);
+			nonEmpty |= 1 << level;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boostIfDue();
+
+			if (nonEmpty == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			KThread thread = queues[level].removeFirst();
+			if (queues[level].isEmpty())
+				nonEmpty &= ~(1 << level);
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(nonEmpty == 0);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				System.out.print(i + ":");
+				for (KThread thread : queues[i])
+					System.out.print(" " + thread);
+				System.out.println();
+			}
+		}
+
+		/**
+		 * If every thread has been boosted since this queue last looked, move
+		 * the threads waiting at lower levels to the end of the top level.
+		 */
+		private void boostIfDue() {
+			if (queueEpoch == epoch)
+				return;
+
+			queueEpoch = epoch;
+			for (int i = 1; i < numLevels; i++) {
+				queues[0].addAll(queues[i]);
+				queues[i].clear();
+			}
+			if (nonEmpty != 0)
+				nonEmpty = 1;
+		}
+
+		private LinkedList<KThread>[] queues;
+		private int nonEmpty = 0;
+		private int queueEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how many times it has
+	 * been preempted at that level.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, which is the top level
+		 * if all threads have been boosted since it last changed.
+		 */
+		int getLevel() {
+			if (stateEpoch != epoch) {
+				stateEpoch = epoch;
+				level = 0;
+				preemptions = 0;
+			}
+
+			return level;
+		}
+
+		int level = 0;
+		int preemptions = 0;
+		int stateEpoch = epoch;
+	}
+
+	private int numLevels;
+	private int boostInterval;
+	private long numPreemptions = 0;
+
+	/** Incremented each time all threads are moved back to the top level. */
+	private int epoch = 0;
+}
@@ -1,8 +1,9 @@
 package nachos.threads;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedList;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
@@ -190,12 +191,73 @@ public class PriorityScheduler extends Scheduler {
 
 		Machine.interrupt().restore(intStatus);
 
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler
+				&& Config.getBoolean("PriorityScheduler.benchmark", false))
+			lockBenchmark(200, 4, 10);
+
 		System.out
 				.println("---------End PriorityScheuler Test---------" + "\n");
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * Time <i>numThreads</i> threads, with priorities spread from 1 to
+	 * <tt>priorityMaximum</tt> (also valid numbers of lottery tickets), each
+	 * taking a chain of <i>depth</i> nested locks <i>rounds</i> times. Every
+	 * thread yields while it holds the locks, so the waiting threads keep
+	 * donating priority along the chain of lock holders. Run by
+	 * <tt>selfTest()</tt> only if <tt>PriorityScheduler.benchmark</tt> is set
+	 * in the configuration file.
+	 */
+	private static void lockBenchmark(int numThreads, final int depth,
+			final int rounds) {
+		final Lock[] locks = new Lock[depth];
+		for (int i = 0; i < depth; i++)
+			locks[i] = new Lock();
+
+		final Semaphore finished = new Semaphore(0);
+
+		long startTicks = Machine.timer().getTime();
+		long startMillis = System.currentTimeMillis();
+
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread(new Runnable() {
+				public void run() {
+					for (int r = 0; r < rounds; r++) {
+						for (int j = 0; j < depth; j++) {
+							locks[j].acquire();
+							KThread.yield();
+						}
+						for (int j = depth - 1; j >= 0; j--)
+							locks[j].release();
+					}
+					finished.V();
+				}
+			});
+			thread.setName("lock benchmark " + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(thread, 1 + i
+					% priorityMaximum);
+			Machine.interrupt().restore(intStatus);
+
+			thread.fork();
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			finished.P();
+
+		System.out.println("Lock benchmark: " + numThreads + " threads, "
+				+ depth + " nested locks, " + rounds + " rounds: "
+				+ (Machine.timer().getTime() - startTicks) + " ticks, "
+				+ (System.currentTimeMillis() - startMillis) + " ms");
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+	 * threads are kept in a binary heap ordered by effective priority, and
+	 * then by the order in which they started waiting, so that
+	 * <tt>nextThread()</tt> and <tt>waitForAccess()</tt> take logarithmic
+	 * time and <tt>pickNextThread()</tt> takes constant time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -213,26 +275,24 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		/**
-		 * Remove highest priority thread from the queue. Once it is removed
-		 * calculate its effective priority.
+		 * Remove the highest priority thread from the queue, and give it
+		 * access to the resource guarded by this queue.
 		 * 
-		 * @return HighestPriority KThread
+		 * @return the highest priority thread, or <tt>null</tt> if no thread
+		 *         is waiting.
 		 */
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			ThreadState threadState = this.pickNextThread();
-			priorityQueue.remove(threadState);
-			if (transferPriority && threadState != null) {
-				this.dequeuedThread.removeQueue(this);
-				threadState.waiting = null;
-				threadState.addQueue(this);
-			}
-			this.dequeuedThread = threadState;
-			if (threadState == null) {
-				this.priorityQueue = new LinkedList<ThreadState>();
+
+			if (size == 0) {
+				release();
 				return null;
 			}
-			return threadState.thread;
+
+			Entry entry = removeEntry(0);
+			entry.threadState.acquire(this);
+
+			return entry.threadState.thread;
 		}
 
 		/**
@@ -242,18 +302,125 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			boolean intStatus = Machine.interrupt().disable();
-			// ensure the priorityQueue is ordered
-			this.priorityQueue = new LinkedList<ThreadState>(priorityQueue);
-			Machine.interrupt().restore(intStatus);
-			return this.priorityQueue.peek();
+			if (size == 0)
+				return null;
+
+			return heap[0].threadState;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// ----triplecq----
-			for (Iterator i = priorityQueue.iterator(); i.hasNext();)
-				System.out.println((KThread) i.next() + " ");
+
+			for (int i = 0; i < size; i++)
+				System.out.println(heap[i].threadState + " ");
+		}
+
+		/**
+		 * Return the priority this queue donates to its holder: the effective
+		 * priority of the first waiting thread, or <tt>-1</tt> if this queue
+		 * does not transfer priority or no thread is waiting.
+		 */
+		int donation() {
+			if (!transferPriority || size == 0)
+				return -1;
+
+			return heap[0].threadState.effectivePriority;
+		}
+
+		/**
+		 * Take access away from the thread that currently holds this queue,
+		 * if any.
+		 */
+		void release() {
+			ThreadState oldHolder = holder;
+			if (oldHolder == null)
+				return;
+
+			holder = null;
+			if (transferPriority) {
+				oldHolder.resources.remove(this);
+				oldHolder.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Notify the holder of this queue that the donation of this queue may
+		 * have changed.
+		 */
+		void donationChanged() {
+			if (transferPriority && holder != null)
+				holder.updateEffectivePriority();
+		}
+
+		void add(Entry entry) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			entry.index = size++;
+			heap[entry.index] = entry;
+			siftUp(entry.index);
+		}
+
+		Entry removeEntry(int index) {
+			Entry entry = heap[index];
+			Entry last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				heap[index] = last;
+				last.index = index;
+				reposition(last);
+			}
+
+			entry.threadState.entries.remove(entry);
+			donationChanged();
+
+			return entry;
+		}
+
+		/**
+		 * Restore the heap order after the effective priority of the thread
+		 * in <tt>entry</tt> has changed.
+		 */
+		void reposition(Entry entry) {
+			int index = entry.index;
+			siftUp(index);
+			if (heap[index] == entry)
+				siftDown(index);
+		}
+
+		private void siftUp(int index) {
+			Entry entry = heap[index];
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!entry.before(heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].index = index;
+				index = parent;
+			}
+			heap[index] = entry;
+			entry.index = index;
+		}
+
+		private void siftDown(int index) {
+			Entry entry = heap[index];
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && heap[child + 1].before(heap[child]))
+					child++;
+				if (!heap[child].before(entry))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].index = index;
+				index = child;
+			}
+			heap[index] = entry;
+			entry.index = index;
 		}
 
 		/**
@@ -262,11 +429,37 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 
-		// base priority queue object
-		protected LinkedList<ThreadState> priorityQueue = new LinkedList<ThreadState>();
+		/** The thread that currently has access, or <tt>null</tt>. */
+		protected ThreadState holder = null;
 
-		// most recently dequeued ThreadState
-		protected ThreadState dequeuedThread = null;
+		private Entry[] heap = new Entry[4];
+		private int size = 0;
+	}
+
+	/**
+	 * A thread waiting in a <tt>PriorityQueue</tt>. A thread may wait in more
+	 * than one queue at a time (a joining thread also sits on the ready
+	 * queue), so each queue it waits in gets its own entry.
+	 */
+	static class Entry {
+		Entry(ThreadState threadState, PriorityQueue queue, long order) {
+			this.threadState = threadState;
+			this.queue = queue;
+			this.order = order;
+		}
+
+		boolean before(Entry entry) {
+			int priority = threadState.effectivePriority;
+			int otherPriority = entry.threadState.effectivePriority;
+
+			return priority > otherPriority
+					|| (priority == otherPriority && order < entry.order);
+		}
+
+		ThreadState threadState;
+		long order;
+		int index;
+		PriorityQueue queue;
 	}
 
 	/**
@@ -274,9 +467,15 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached, and only recomputed when the thread's
+	 * own priority changes or the donation of one of the queues it holds
+	 * changes. A change is then passed along the chain of holders until it
+	 * stops making a difference.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState implements Comparable<ThreadState> {
+	protected class ThreadState {
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -286,12 +485,6 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public ThreadState(KThread thread) {
 			this.thread = thread;
-
-			// initialize the onQueue
-			this.onQueues = new LinkedList<PriorityQueue>();
-			this.age = Machine.timer().getTime();
-			this.effectivePriority = priorityDefault;
-			this.waiting = null;
 		}
 
 		/**
@@ -303,42 +496,13 @@ public class PriorityScheduler extends Scheduler {
 			return priority;
 		}
 
-		/**
-		 * Calculate the effective priority of the thread and the thread which
-		 * current holds the resources it's waiting on
-		 */
-		public void calEffectivePriority() {
-			int initPriority = this.getPriority();
-			int maxEP = -1;
-			if (onQueues.size() != 0) {
-				int size = onQueues.size();
-				for (int i = 0; i < size; i++) {
-					PriorityQueue current = onQueues.get(i);
-					ThreadState donator = current.pickNextThread();
-					if (donator != null) {
-						if (donator.getEffectivePriority() > maxEP
-								&& current.transferPriority)
-							maxEP = donator.getEffectivePriority();
-					}
-				}
-			}
-			if (initPriority > maxEP)
-				maxEP = initPriority;
-			this.effectivePriority = maxEP;
-
-			// recalculate the thread which this one is waiting on
-			if (this.waiting != null && this.waiting.dequeuedThread != null)
-				if (this.effectivePriority != this.waiting.dequeuedThread.effectivePriority)
-					this.waiting.dequeuedThread.calEffectivePriority();
-		}
-
 		/**
 		 * Return the effective priority of the associated thread.
 		 * 
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			return this.effectivePriority;
+			return effectivePriority;
 		}
 
 		/**
@@ -352,9 +516,7 @@ public class PriorityScheduler extends Scheduler {
 				return;
 
 			this.priority = priority;
-			this.calEffectivePriority();
-			if (this.waiting != null && this.waiting.dequeuedThread != null)
-				this.waiting.dequeuedThread.calEffectivePriority();
+			updateEffectivePriority();
 		}
 
 		/**
@@ -371,11 +533,12 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			long time = Machine.timer().getTime();
-			this.age = time;
-			waitQueue.priorityQueue.add(this);
-			this.waiting = waitQueue;
-			this.calEffectivePriority();
+
+			Entry entry = new Entry(this, waitQueue, numWaits++);
+			entries.add(entry);
+
+			waitQueue.add(entry);
+			waitQueue.donationChanged();
 		}
 
 		/**
@@ -389,31 +552,47 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// Lib.assertTrue(Machine.interrupt().disable());
-			Lib.assertTrue(waitQueue.priorityQueue.isEmpty());
-			waitQueue.dequeuedThread = this;
-			this.addQueue(waitQueue);
-			this.calEffectivePriority();
-		}
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			waitQueue.release();
+			waitQueue.holder = this;
 
-		public void addQueue(PriorityQueue waitQueue) {
-			onQueues.add(waitQueue);
-			this.calEffectivePriority();
+			if (waitQueue.transferPriority) {
+				resources.add(waitQueue);
+				updateEffectivePriority();
+			}
 		}
 
-		public void removeQueue(PriorityQueue waitQueue) {
-			onQueues.remove();
-			this.calEffectivePriority();
+		/**
+		 * Recompute the effective priority from this thread's own priority
+		 * and the donations of the queues it holds. If it changed, move this
+		 * thread within the queues it waits in, and let their holders
+		 * recompute theirs.
+		 */
+		void updateEffectivePriority() {
+			int newPriority = computeEffectivePriority();
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			for (Entry entry : entries) {
+				entry.queue.reposition(entry);
+				entry.queue.donationChanged();
+			}
 		}
 
-		public int compareTo(ThreadState threadState) {
-			if (threadState == null)
-				return -1;
-			if (this.getEffectivePriority() < threadState
-					.getEffectivePriority() || this.age >= threadState.age)
-				return 1;
-			else
-				return -1;
+		/**
+		 * Return the effective priority this thread should have: the
+		 * maximum of its own priority and the donations of the queues it
+		 * holds.
+		 */
+		int computeEffectivePriority() {
+			int newPriority = priority;
+			for (PriorityQueue resource : resources)
+				newPriority = Math.max(newPriority, resource.donation());
+
+			return newPriority;
 		}
 
 		public String toString() {
@@ -426,10 +605,14 @@ public class PriorityScheduler extends Scheduler {
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority = priorityDefault;
-		// the age of the thread state relative to Nachos time
-		protected long age = Machine.timer().getTime();
-		protected int effectivePriority;
-		protected LinkedList<PriorityQueue> onQueues;
-		protected PriorityQueue waiting;
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = priorityDefault;
+		/** The priority-transferring queues this thread holds. */
+		protected LinkedList<PriorityQueue> resources = new LinkedList<PriorityQueue>();
+		/** The queues this thread is waiting in. */
+		LinkedList<Entry> entries = new LinkedList<Entry>();
 	}
-}
\ No newline at end of file
+
+	/** Counts calls to <tt>waitForAccess()</tt>, to keep queues FIFO. */
+	private long numWaits = 0;
+}
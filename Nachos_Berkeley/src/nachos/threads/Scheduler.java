@@ -157,4 +157,29 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm when the timer interrupt is about to preempt the
+	 * specified thread, which is the current thread. Must be called with
+	 * interrupts disabled. Schedulers that adapt to how threads use the CPU
+	 * can override this; by default it does nothing.
+	 * 
+	 * @param thread
+	 *            the thread being preempted.
+	 */
+	public void threadPreempted(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Called by <tt>KThread.sleep()</tt> when the specified thread, which is
+	 * the current thread, blocks to wait for something. Must be called with
+	 * interrupts disabled. By default this does nothing.
+	 * 
+	 * @param thread
+	 *            the thread that is blocking.
+	 */
+	public void threadBlocked(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
@@ -54,6 +54,10 @@ public class ThreadedKernel extends Kernel {
 		// ------triplecq------
 		Communicator.selfTest();
 		PriorityScheduler.selfTest();
+		if (Config.getBoolean("LotteryScheduler.selfTest", false))
+			LotteryScheduler.selfTest();
+		if (Config.getBoolean("MLFQScheduler.selfTest", false))
+			MLFQScheduler.selfTest();
 
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -24,6 +27,15 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 
+		bufferLock = new Lock();
+		processLock = new Lock();
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		freeFrameList = new int[numPhysPages];
+		for (int ppn = numPhysPages - 1; ppn >= 0; ppn--)
+			freeFrameList[numFreeFrames++] = ppn;
+		frameLock = new Lock();
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -62,6 +74,140 @@ public class UserKernel extends ThreadedKernel {
 		return ((UThread) KThread.currentThread()).process;
 	}
 
+	/**
+	 * Allocate physical pages. The pages need not be contiguous. Either all
+	 * the pages are allocated or none are.
+	 * 
+	 * @param count
+	 *            the number of pages needed.
+	 * @return the physical page numbers, or <tt>null</tt> if there are not
+	 *         enough free pages.
+	 */
+	public static int[] allocateFrames(int count) {
+		frameLock.acquire();
+
+		if (count > numFreeFrames) {
+			frameLock.release();
+			return null;
+		}
+
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++)
+			ppns[i] = freeFrameList[--numFreeFrames];
+
+		Stats stats = Machine.stats();
+		stats.numFrameAllocations += count;
+		stats.maxFramesInUse = Math.max(stats.maxFramesInUse,
+				freeFrameList.length - numFreeFrames);
+
+		frameLock.release();
+
+		return ppns;
+	}
+
+	/**
+	 * Return physical pages obtained from <tt>allocateFrames()</tt> to the
+	 * free list.
+	 * 
+	 * @param ppns
+	 *            the physical page numbers.
+	 */
+	public static void freeFrames(int[] ppns) {
+		frameLock.acquire();
+
+		for (int i = 0; i < ppns.length; i++)
+			freeFrameList[numFreeFrames++] = ppns[i];
+		Lib.assertTrue(numFreeFrames <= freeFrameList.length);
+
+		frameLock.release();
+	}
+
+	/**
+	 * Return the number of physical pages not allocated to any process.
+	 * 
+	 * @return the number of free pages.
+	 */
+	public static int getNumFreeFrames() {
+		return numFreeFrames;
+	}
+
+	/**
+	 * Return a new process ID.
+	 * 
+	 * @return an ID no other process has had.
+	 */
+	public static int newProcessID() {
+		processLock.acquire();
+		int processID = nextProcessID++;
+		processLock.release();
+
+		return processID;
+	}
+
+	/**
+	 * Add a process to the process table, just before its thread is started.
+	 * 
+	 * @param process
+	 *            the process being started.
+	 */
+	public static void addProcess(UserProcess process) {
+		processLock.acquire();
+		processes.put(process.processID, process);
+		processLock.release();
+	}
+
+	/**
+	 * Remove an exiting process from the process table.
+	 * 
+	 * @param process
+	 *            the exiting process.
+	 * @return <tt>true</tt> if it was the last process.
+	 */
+	public static boolean removeProcess(UserProcess process) {
+		processLock.acquire();
+		Lib.assertTrue(processes.remove(process.processID) == process);
+		boolean last = processes.isEmpty();
+		processLock.release();
+
+		return last;
+	}
+
+	/**
+	 * Take a page-sized kernel buffer from the pool, for moving data between
+	 * user memory and a file. A new buffer is allocated only when every pooled
+	 * buffer is in use, so the pool never grows beyond the number of syscalls
+	 * that have been in progress at once.
+	 * 
+	 * @return a buffer of <tt>Processor.pageSize</tt> bytes.
+	 */
+	public static byte[] getBuffer() {
+		bufferLock.acquire();
+
+		byte[] buffer;
+		if (freeBuffers.isEmpty())
+			buffer = new byte[Processor.pageSize];
+		else
+			buffer = freeBuffers.removeFirst();
+
+		bufferLock.release();
+
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer obtained from <tt>getBuffer()</tt> to the pool.
+	 * 
+	 * @param buffer
+	 *            the buffer to return.
+	 */
+	public static void releaseBuffer(byte[] buffer) {
+		Lib.assertTrue(buffer.length == Processor.pageSize);
+
+		bufferLock.acquire();
+		freeBuffers.add(buffer);
+		bufferLock.release();
+	}
+
 	/**
 	 * The exception handler. This handler is called by the processor whenever a
 	 * user instruction causes a processor exception.
@@ -111,6 +257,23 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** A stack of the physical pages not allocated to any process. */
+	private static int[] freeFrameList;
+	private static int numFreeFrames = 0;
+	/** Protects <tt>freeFrameList</tt> and <tt>numFreeFrames</tt>. */
+	private static Lock frameLock;
+
+	/** The processes that have started and not yet exited, by process ID. */
+	private static HashMap<Integer, UserProcess> processes = new HashMap<Integer, UserProcess>();
+	private static int nextProcessID = 0;
+	/** Protects <tt>processes</tt> and <tt>nextProcessID</tt>. */
+	private static Lock processLock;
+
+	/** Page-sized buffers not currently in use by a syscall. */
+	private static LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+	/** Protects <tt>freeBuffers</tt>. */
+	private static Lock bufferLock;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -23,10 +25,10 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		processID = UserKernel.newProcessID();
+
+		fileTable[0] = UserKernel.console.openForReading();
+		fileTable[1] = UserKernel.console.openForWriting();
 	}
 
 	/**
@@ -54,6 +56,7 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
+		UserKernel.addProcess(this);
 		new UThread(this).setName(name).fork();
 
 		return true;
@@ -81,6 +84,12 @@ public class UserProcess {
 	 * without including the null terminator. If no null terminator is found,
 	 * returns <tt>null</tt>.
 	 * 
+	 * <p>
+	 * The terminator is searched for in place, page by page. A string that
+	 * lies within one page is converted straight from physical memory; only a
+	 * string that crosses a page boundary is gathered into a buffer, which is
+	 * kept for the next call.
+	 * 
 	 * @param vaddr
 	 *            the starting virtual address of the null-terminated string.
 	 * @param maxLength
@@ -92,13 +101,39 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+		byte[] memory = Machine.processor().getMemory();
+		int length = 0;
+
+		while (length <= maxLength) {
+			int addr = vaddr + length;
+			if (addr < 0)
+				break;
+
+			TranslationEntry entry = translate(
+					Processor.pageFromAddress(addr), false);
+			if (entry == null)
+				break;
+			entry.used = true;
+
+			int pageOffset = Processor.offsetFromAddress(addr);
+			int paddr = entry.ppn * pageSize + pageOffset;
+			int chunk = Math.min(maxLength + 1 - length, pageSize - pageOffset);
+
+			int end = 0;
+			while (end < chunk && memory[paddr + end] != 0)
+				end++;
+
+			if (end < chunk && length == 0)
+				return new String(memory, paddr, end);
+
+			if (stringBuffer.length < length + end)
+				stringBuffer = Arrays.copyOf(stringBuffer,
+						Math.max(length + end, stringBuffer.length * 2));
+			System.arraycopy(memory, paddr, stringBuffer, length, end);
+			length += end;
+
+			if (end < chunk)
+				return new String(stringBuffer, 0, length);
 		}
 
 		return null;
@@ -137,19 +172,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
-
-		return amount;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -185,21 +208,87 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy data between this process's virtual memory and the specified
+	 * array. Each page is translated once, and copied as a whole chunk;
+	 * its <tt>used</tt> bit, and for a write its <tt>dirty</tt> bit, is set as
+	 * if the program had accessed it. The copy stops at the first page that
+	 * cannot be accessed.
+	 * 
+	 * @param vaddr
+	 *            the first byte of virtual memory to access.
+	 * @param data
+	 *            the array to copy to or from.
+	 * @param offset
+	 *            the first byte of the array to access.
+	 * @param length
+	 *            the number of bytes to transfer.
+	 * @param writing
+	 *            <tt>true</tt> to copy from the array to virtual memory.
+	 * @return the number of bytes successfully transferred.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean writing) {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		while (amount < length) {
+			int addr = vaddr + amount;
+			if (addr < 0)
+				break;
+
+			TranslationEntry entry = translate(
+					Processor.pageFromAddress(addr), writing);
+			if (entry == null)
+				break;
+
+			int pageOffset = Processor.offsetFromAddress(addr);
+			int paddr = entry.ppn * pageSize + pageOffset;
+			int chunk = Math.min(length - amount, pageSize - pageOffset);
+
+			if (writing) {
+				System.arraycopy(data, offset + amount, memory, paddr, chunk);
+				entry.dirty = true;
+			} else {
+				System.arraycopy(memory, paddr, data, offset + amount, chunk);
+			}
+			entry.used = true;
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+			amount += chunk;
+		}
 
 		return amount;
 	}
 
+	/**
+	 * Return the translation for a page of this process's virtual memory, for
+	 * the kernel to access the page. A process that pages on demand brings the
+	 * page into memory first.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @param writing
+	 *            <tt>true</tt> if the page is about to be written.
+	 * @return the translation for the page, or <tt>null</tt> if the page is not
+	 *         mapped, or is read-only and <tt>writing</tt> is set.
+	 */
+	protected TranslationEntry translate(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return null;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (writing && entry.readOnly))
+			return null;
+
+		return entry;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -296,13 +385,20 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		int[] ppns = UserKernel.allocateFrames(numPages);
+		if (ppns == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true, false,
+					false, false);
+
 		// load sections
+		int coffPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -312,11 +408,19 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, vpn);
+				pageTable[vpn].readOnly = section.isReadOnly();
+				section.loadPage(i, ppns[vpn]);
 			}
+
+			coffPages += section.getLength();
 		}
 
+		// the stack and argument pages may hold another process's data
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn = coffPages; vpn < numPages; vpn++)
+			Arrays.fill(memory, ppns[vpn] * pageSize,
+					(ppns[vpn] + 1) * pageSize, (byte) 0);
+
 		return true;
 	}
 
@@ -324,6 +428,13 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		int[] ppns = new int[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			ppns[vpn] = pageTable[vpn].ppn;
+
+		UserKernel.freeFrames(ppns);
+
+		coff.close();
 	}
 
 	/**
@@ -360,7 +471,259 @@ public class UserProcess {
 		return 0;
 	}
 
-	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
+	/**
+	 * Handle the exit() system call.
+	 */
+	private int handleExit(int status) {
+		terminate(new Integer(status));
+
+		Lib.assertNotReached("terminate() did not finish the process!");
+		return 0;
+	}
+
+	/**
+	 * Handle the exec() system call. At most <tt>maxArgc</tt> arguments, one
+	 * page of pointers, can be passed.
+	 */
+	private int handleExec(int nameAddr, int argc, int argvAddr) {
+		String name = readVirtualMemoryString(nameAddr, maxNameLength);
+		if (name == null || !name.endsWith(".coff") || argc < 0
+				|| argc > maxArgc)
+			return -1;
+
+		String[] args = new String[argc];
+		byte[] pointer = new byte[4];
+		for (int i = 0; i < argc; i++) {
+			if (readVirtualMemory(argvAddr + i * 4, pointer) < 4)
+				return -1;
+
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					maxNameLength);
+			if (args[i] == null)
+				return -1;
+		}
+
+		UserProcess child = newUserProcess();
+		if (!child.execute(name, args)) {
+			child.closeFiles();
+			return -1;
+		}
+
+		children.put(child.processID, child);
+		return child.processID;
+	}
+
+	/**
+	 * Handle the join() system call. A child can be joined only once.
+	 */
+	private int handleJoin(int processID, int statusAddr) {
+		UserProcess child = children.remove(processID);
+		if (child == null)
+			return -1;
+
+		child.exited.P();
+
+		if (child.exitStatus == null)
+			return 0;
+
+		writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+		return 1;
+	}
+
+	/**
+	 * Terminate this process: close its files, release its memory, and wake
+	 * its parent if it is waiting in <tt>join()</tt>. Its children are
+	 * disowned. The kernel terminates when the last process exits. Never
+	 * returns.
+	 * 
+	 * @param status
+	 *            the exit status, or <tt>null</tt> if the process is being
+	 *            killed because of an unhandled exception.
+	 */
+	protected void terminate(Integer status) {
+		// release memory first, since it may be written back to open files
+		unloadSections();
+		closeFiles();
+
+		children.clear();
+
+		exitStatus = status;
+		exited.V();
+
+		if (UserKernel.removeProcess(this))
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+	}
+
+	/**
+	 * Close every file this process has open, including the console, and
+	 * free its file descriptors.
+	 */
+	protected void closeFiles() {
+		for (int fd = 0; fd < maxFiles; fd++) {
+			if (fileTable[fd] != null) {
+				fileTable[fd].close();
+				fileTable[fd] = null;
+			}
+		}
+	}
+
+	/**
+	 * Handle the creat() system call.
+	 */
+	private int handleCreate(int nameAddr) {
+		return openFile(nameAddr, true);
+	}
+
+	/**
+	 * Handle the open() system call.
+	 */
+	private int handleOpen(int nameAddr) {
+		return openFile(nameAddr, false);
+	}
+
+	/**
+	 * Open a file in the kernel's file system and give it the lowest free file
+	 * descriptor.
+	 * 
+	 * @param nameAddr
+	 *            the virtual address of the file's name.
+	 * @param create
+	 *            <tt>true</tt> to create the file if it does not exist.
+	 * @return the new file descriptor, or -1 on error.
+	 */
+	private int openFile(int nameAddr, boolean create) {
+		String name = readVirtualMemoryString(nameAddr, maxNameLength);
+		if (name == null)
+			return -1;
+
+		int fd;
+		for (fd = 0; fd < maxFiles; fd++) {
+			if (fileTable[fd] == null)
+				break;
+		}
+		if (fd == maxFiles)
+			return -1;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+		if (file == null)
+			return -1;
+
+		fileTable[fd] = file;
+		return fd;
+	}
+
+	/**
+	 * Handle the read() system call. Data moves through a pooled kernel
+	 * buffer one page at a time, and a short read from the file ends the call
+	 * early.
+	 */
+	private int handleRead(int fd, int vaddr, int count) {
+		OpenFile file = getFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		byte[] buffer = UserKernel.getBuffer();
+
+		int total = 0;
+		while (total < count) {
+			int length = Math.min(count - total, pageSize);
+
+			int read = file.read(buffer, 0, length);
+			if (read == -1
+					|| writeVirtualMemory(vaddr + total, buffer, 0, read) < read) {
+				total = -1;
+				break;
+			}
+
+			total += read;
+			if (read < length)
+				break;
+		}
+
+		UserKernel.releaseBuffer(buffer);
+
+		return total;
+	}
+
+	/**
+	 * Handle the write() system call. Data moves through a pooled kernel
+	 * buffer one page at a time.
+	 */
+	private int handleWrite(int fd, int vaddr, int count) {
+		OpenFile file = getFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		byte[] buffer = UserKernel.getBuffer();
+
+		int total = 0;
+		while (total < count) {
+			int length = Math.min(count - total, pageSize);
+
+			if (readVirtualMemory(vaddr + total, buffer, 0, length) < length) {
+				total = -1;
+				break;
+			}
+
+			int written = file.write(buffer, 0, length);
+			if (written == -1) {
+				total = -1;
+				break;
+			}
+
+			total += written;
+			if (written < length)
+				break;
+		}
+
+		UserKernel.releaseBuffer(buffer);
+
+		return total;
+	}
+
+	/**
+	 * Handle the close() system call.
+	 */
+	private int handleClose(int fd) {
+		OpenFile file = getFile(fd);
+		if (file == null)
+			return -1;
+
+		file.close();
+		fileTable[fd] = null;
+
+		return 0;
+	}
+
+	/**
+	 * Handle the unlink() system call.
+	 */
+	private int handleUnlink(int nameAddr) {
+		String name = readVirtualMemoryString(nameAddr, maxNameLength);
+		if (name == null)
+			return -1;
+
+		return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+	}
+
+	/**
+	 * Return the file open on a file descriptor.
+	 * 
+	 * @param fd
+	 *            the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is invalid or
+	 *         not in use.
+	 */
+	protected OpenFile getFile(int fd) {
+		if (fd < 0 || fd >= maxFiles)
+			return null;
+
+		return fileTable[fd];
+	}
+
+	protected static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
 			syscallUnlink = 9;
@@ -435,6 +798,24 @@ public class UserProcess {
 		switch (syscall) {
 		case syscallHalt:
 			return handleHalt();
+		case syscallExit:
+			return handleExit(a0);
+		case syscallExec:
+			return handleExec(a0, a1, a2);
+		case syscallJoin:
+			return handleJoin(a0, a1);
+		case syscallCreate:
+			return handleCreate(a0);
+		case syscallOpen:
+			return handleOpen(a0);
+		case syscallRead:
+			return handleRead(a0, a1, a2);
+		case syscallWrite:
+			return handleWrite(a0, a1, a2);
+		case syscallClose:
+			return handleClose(a0);
+		case syscallUnlink:
+			return handleUnlink(a0);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -468,7 +849,7 @@ public class UserProcess {
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+			terminate(null);
 		}
 	}
 
@@ -483,9 +864,28 @@ public class UserProcess {
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
 
+	/** This process's ID, unique among all processes ever created. */
+	protected int processID;
+	/** The children this process has not yet joined, by process ID. */
+	protected HashMap<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+	/** The status passed to <tt>exit()</tt>, or <tt>null</tt> if killed. */
+	private Integer exitStatus = null;
+	/** Released when this process exits. */
+	private Semaphore exited = new Semaphore(0);
+
+	/** The number of file descriptors a process can have open at once. */
+	protected static final int maxFiles = 16;
+	/** The files open on each file descriptor, or <tt>null</tt> if free. */
+	protected OpenFile[] fileTable = new OpenFile[maxFiles];
+
+	/** Gathers strings that cross a page boundary. */
+	private byte[] stringBuffer = new byte[0];
+
 	private int initialPC, initialSP;
 	private int argc, argv;
 
 	private static final int pageSize = Processor.pageSize;
+	private static final int maxNameLength = 256;
+	private static final int maxArgc = pageSize / 4;
 	private static final char dbgProcess = 'a';
 }
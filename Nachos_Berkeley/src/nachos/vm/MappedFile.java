@@ -0,0 +1,105 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * A file mapped into a process's address space by <tt>mmap()</tt>. A page of
+ * the mapping is read from the file the first time it is touched, and written
+ * back only if it is dirty, when it is evicted or the mapping is removed. Both
+ * transfers go directly between the file and the page's frame, with no kernel
+ * buffer in between. The part of the last page beyond the end of the file
+ * reads as zeroes and is never written back.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.vmLock</tt> held.
+ */
+public class MappedFile {
+    /**
+     * Map an open file at the specified virtual page.
+     *
+     * @param	fileDescriptor	the file descriptor the file is open on.
+     * @param	file	the file to map.
+     * @param	firstVPN	the first virtual page of the mapping.
+     * @param	length	the length of the file, in bytes.
+     */
+    public MappedFile(int fileDescriptor, OpenFile file, int firstVPN,
+		      int length) {
+	this.fileDescriptor = fileDescriptor;
+	this.file = file;
+	this.firstVPN = firstVPN;
+	this.length = length;
+
+	numPages = (int) (((long) length + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Return whether the specified page lies within this mapping.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is mapped by this file.
+     */
+    boolean contains(int vpn) {
+	return vpn >= firstVPN && vpn - firstVPN < numPages;
+    }
+
+    /**
+     * Read a page of the file into a frame.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame to fill.
+     */
+    void pageIn(int vpn, int ppn) {
+	Lib.assertTrue(contains(vpn));
+
+	Lib.debug(dbgVM, "mapped page " + vpn + " <- " + file.getName()
+		  + " into frame " + ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	int read = file.read(filePosition(vpn), memory, ppn*pageSize,
+			     pageLength(vpn));
+
+	Arrays.fill(memory, ppn*pageSize + Math.max(read, 0),
+		    (ppn+1)*pageSize, (byte) 0);
+    }
+
+    /**
+     * Write a dirty page back to the file.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame holding the page's contents.
+     */
+    void pageOut(int vpn, int ppn) {
+	Lib.assertTrue(contains(vpn));
+
+	Lib.debug(dbgVM, "mapped page " + vpn + " -> " + file.getName());
+
+	byte[] memory = Machine.processor().getMemory();
+	int written = file.write(filePosition(vpn), memory, ppn*pageSize,
+				 pageLength(vpn));
+	Lib.assertTrue(written == pageLength(vpn));
+    }
+
+    private int filePosition(int vpn) {
+	return (vpn - firstVPN) * pageSize;
+    }
+
+    private int pageLength(int vpn) {
+	return Math.min(pageSize, length - filePosition(vpn));
+    }
+
+    /** The file descriptor the file is open on. */
+    final int fileDescriptor;
+    /** The first virtual page of the mapping. */
+    final int firstVPN;
+    /** The number of virtual pages the mapping covers. */
+    final int numPages;
+
+    private OpenFile file;
+    private int length;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
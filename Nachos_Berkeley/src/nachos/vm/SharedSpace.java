@@ -0,0 +1,159 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * The pages a process had when it forked, shared copy-on-write between it
+ * and its child. Each page is mapped read-only into every sharer, and counts
+ * the sharers that have not yet written it; a sharer that writes a page gets
+ * a private copy, and the last one takes the page itself. A shared page is
+ * either resident, in its own swap slot, or, if it has neither, a page of
+ * zeroes that nobody had written.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.vmLock</tt> held.
+ */
+public class SharedSpace {
+    /**
+     * Allocate a new, empty shared space.
+     *
+     * @param	numPages	the number of pages in the address space.
+     */
+    public SharedSpace(int numPages) {
+	spaceID = VMKernel.newSpaceID();
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+	sharers = new int[numPages];
+    }
+
+    /**
+     * Take over a page from the process that is forking.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	frame	the frame holding the page, or <tt>null</tt> if it is
+     *			not resident.
+     * @param	slot	the page's swap slot, or -1 if it has none.
+     * @param	count	the number of processes that will share the page.
+     */
+    void adopt(int vpn, VMKernel.Frame frame, int slot, int count) {
+	Lib.assertTrue(sharers[vpn] == 0);
+
+	if (frame != null) {
+	    VMKernel.moveFrame(frame, spaceID, null, true);
+	    frame.shared = this;
+	}
+
+	swapSlots[vpn] = slot;
+	sharers[vpn] = count;
+    }
+
+    /**
+     * Add a sharer to a page, when a process sharing it forks.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    void share(int vpn) {
+	Lib.assertTrue(sharers[vpn] > 0);
+
+	sharers[vpn]++;
+    }
+
+    /**
+     * Return the number of processes sharing a page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the number of sharers.
+     */
+    int getSharers(int vpn) {
+	return sharers[vpn];
+    }
+
+    /**
+     * Drop a sharer from a page, when a process copies it or exits. The page
+     * is freed once nobody shares it.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    void release(int vpn) {
+	Lib.assertTrue(sharers[vpn] > 0);
+
+	if (--sharers[vpn] > 0)
+	    return;
+
+	VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	if (frame != null)
+	    VMKernel.freeFrame(frame);
+
+	if (swapSlots[vpn] != -1) {
+	    VMKernel.swap.free(swapSlots[vpn]);
+	    swapSlots[vpn] = -1;
+	}
+    }
+
+    /**
+     * Return the frame holding a shared page, reading it in if it is not
+     * resident.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the frame holding the page, or <tt>null</tt> if no frame could
+     *		be found for it.
+     */
+    VMKernel.Frame pageIn(int vpn) {
+	Lib.assertTrue(sharers[vpn] > 0);
+
+	VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	if (frame != null)
+	    return frame;
+
+	frame = VMKernel.allocateFrame();
+	if (frame == null)
+	    return null;
+
+	int ppn = frame.entry.ppn;
+	if (swapSlots[vpn] != -1) {
+	    Lib.debug(dbgVM, "shared page " + vpn + " <- swap slot "
+		      + swapSlots[vpn] + " into frame " + ppn);
+
+	    VMKernel.swap.read(swapSlots[vpn], new int[] { ppn }, 1);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	VMKernel.map(frame, spaceID, null, vpn, true);
+	frame.shared = this;
+
+	return frame;
+    }
+
+    /**
+     * Write an evicted shared page to swap. The page may be dirty because the
+     * process that forked had written it before the fork.
+     *
+     * @param	vpn	the evicted page, which has already been unmapped.
+     * @param	ppn	the frame still holding its contents.
+     */
+    void pageOut(int vpn, int ppn) {
+	if (swapSlots[vpn] == -1)
+	    swapSlots[vpn] = VMKernel.swap.allocate(1);
+
+	Lib.debug(dbgVM, "shared page " + vpn + " -> swap slot "
+		  + swapSlots[vpn]);
+
+	VMKernel.swap.write(swapSlots[vpn], new int[] { ppn }, 1);
+    }
+
+    /** Identifies this space in the inverted page table. */
+    final int spaceID;
+
+    private int[] swapSlots;
+    private int[] sharers;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,129 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * The backing store for dirty pages evicted from physical memory. The swap
+ * file is divided into page-sized slots, and a bitmap records which slots are
+ * in use. Several pages can be written to consecutive slots in a single file
+ * write, which costs the same simulated delay as writing one page.
+ */
+public class SwapFile {
+    /**
+     * Create an empty swap file with the specified name in the kernel's file
+     * system.
+     *
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null);
+    }
+
+    /**
+     * Allocate a run of consecutive free slots.
+     *
+     * @param	count	the number of slots needed.
+     * @return	the first slot of the run.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	int first = slots.nextClearBit(0);
+	while (true) {
+	    int end = slots.nextSetBit(first);
+	    if (end == -1 || end - first >= count)
+		break;
+
+	    first = slots.nextClearBit(end);
+	}
+
+	slots.set(first, first+count);
+	return first;
+    }
+
+    /**
+     * Return a slot to the free bitmap.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slots.get(slot));
+
+	slots.clear(slot);
+    }
+
+    /**
+     * Read pages from consecutive slots into physical memory in a single file
+     * read.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to fill, in slot order.
+     * @param	count	the number of pages to read.
+     */
+    public void read(int slot, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (buffer.length < count*pageSize)
+	    buffer = new byte[count*pageSize];
+
+	int read = file.read(slot*pageSize, buffer, 0, count*pageSize);
+	Lib.assertTrue(read == count*pageSize);
+
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(slots.get(slot+i));
+	    System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+	}
+
+	Machine.stats().numSwapIns += count;
+    }
+
+    /**
+     * Write physical pages to consecutive slots in a single file write.
+     *
+     * @param	slot	the first slot to write.
+     * @param	ppns	the physical pages to write, in slot order.
+     * @param	count	the number of pages to write.
+     */
+    public void write(int slot, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (buffer.length < count*pageSize)
+	    buffer = new byte[count*pageSize];
+
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(slots.get(slot+i));
+	    System.arraycopy(memory, ppns[i]*pageSize, buffer, i*pageSize,
+			     pageSize);
+	}
+
+	int written = file.write(slot*pageSize, buffer, 0, count*pageSize);
+	Lib.assertTrue(written == count*pageSize);
+
+	Machine.stats().numSwapOuts += count;
+	Machine.stats().numSwapWrites++;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    /** The slots in use. */
+    private BitSet slots = new BitSet();
+    /** Holds the pages of a clustered read or write. */
+    private byte[] buffer = new byte[0];
+
+    private static final int pageSize = Processor.pageSize;
+}
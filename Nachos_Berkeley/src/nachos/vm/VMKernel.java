@@ -5,8 +5,46 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is described by a core map with one <tt>Frame</tt> per
+ * physical page. The resident pages of every process are found through a
+ * single inverted page table: a hash table of frames keyed by address space
+ * and virtual page number, so its size depends only on the amount of physical
+ * memory. When no frame is free, a clock sweep over the core map chooses a
+ * victim, giving a second chance to frames whose <tt>used</tt> bit is set.
+ * A dirty victim is written to the swap file by its process before the frame
+ * is reused.
+ *
+ * <p>
+ * Processes running the same executable share its read-only pages. These
+ * pages belong to an <tt>Image</tt>, an address space of their own that
+ * lives as long as some process is running the executable, so only one copy
+ * of each is ever resident.
+ *
+ * <p>
+ * One frame is set aside, filled with zeroes, and never evicted. Every page
+ * of stack, arguments or uninitialized data that a process has not yet
+ * written is mapped read-only to this zero frame, and gets a frame of its own
+ * only when it is first written.
+ *
+ * <p>
+ * Each process has a quota of frames. A process at its quota replaces its
+ * own pages; one below it takes frames from shared pages, from suspended
+ * processes, and from processes over their quotas. Quotas follow each
+ * process's page-fault frequency: a process that faults again soon after its
+ * last fault gains a frame, and one that has gone long without faulting
+ * shrinks to its working set, the pages it has used within a recent window
+ * of its own running time. When the quotas of the running processes add up
+ * to more frames than there are, processes are suspended in turn until they
+ * fit, rather than letting every process thrash.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +59,64 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	frames = new Frame[numPhysPages];
+	freeFrames = new int[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    frames[ppn] = new Frame(ppn);
+	    freeFrames[numFree++] = ppn;
+	}
+
+	zeroFrame = frames[freeFrames[--numFree]];
+	zeroFrame.spaceID = newSpaceID();
+	zeroFrame.pinned = true;
+	zeroFrame.entry.valid = true;
+	zeroFrame.entry.readOnly = true;
+	Arrays.fill(Machine.processor().getMemory(),
+		    zeroFrame.entry.ppn*pageSize,
+		    (zeroFrame.entry.ppn+1)*pageSize, (byte) 0);
+	numPageable = numPhysPages - 1;
+
+	// at least twice as many buckets as frames keeps the chains short
+	int numBuckets = Integer.highestOneBit(numPhysPages*2 - 1) << 1;
+	hashAnchors = new int[numBuckets];
+	for (int i=0; i<numBuckets; i++)
+	    hashAnchors[i] = -1;
+
+	int stlbSize = Config.getInteger("VMKernel.stlbSize", 4096);
+	Lib.assertTrue(stlbSize > 0 && Integer.bitCount(stlbSize) == 1);
+	stlbFrames = new Frame[stlbSize];
+	stlbOwners = new int[stlbSize];
+	stlbVPNs = new int[stlbSize];
+	stlbSpaces = new int[stlbSize];
+
+	String policy = Config.getString("VMKernel.tlbReplacement", "random");
+	if (policy.equals("random"))
+	    tlbReplacement = tlbRandom;
+	else if (policy.equals("fifo"))
+	    tlbReplacement = tlbFIFO;
+	else if (policy.equals("nru"))
+	    tlbReplacement = tlbNRU;
+	else
+	    Lib.assertNotReached("unknown TLB replacement policy: " + policy);
+
+	minQuota = Config.getInteger("VMKernel.minQuota", 4);
+	faultInterval = Config.getInteger("VMKernel.faultInterval", 1000);
+	workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 5000);
+	suspendTicks = Config.getInteger("VMKernel.suspendTicks", 100000);
+	Lib.assertTrue(minQuota > 0 && faultInterval > 0 &&
+		       workingSetWindow > 0 && suspendTicks > 0);
+
+	vmLock = new Lock();
+
+	swap = new SwapFile(swapName);
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,16 +127,888 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Return a new address space identifier.
+     *
+     * @return	an identifier no other address space has.
+     */
+    static int newSpaceID() {
+	return nextSpaceID++;
+    }
+
+    /**
+     * Start counting a process's frame quota towards the demand on memory.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	process	a process that has just been created.
+     */
+    static void admit(VMProcess process) {
+	process.quota = Math.min(minQuota, numPageable);
+	active.add(process);
+
+	balance();
+    }
+
+    /**
+     * Stop counting an exiting process's frame quota. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param	process	the exiting process.
+     */
+    static void retire(VMProcess process) {
+	active.remove(process);
+	suspended.remove(process);
+
+	balance();
+    }
+
+    /**
+     * Resume a suspended process that has waited for
+     * <tt>suspendTicks</tt>, even if other processes must be suspended to
+     * make room for it. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	process	a suspended process.
+     */
+    static void resume(VMProcess process) {
+	suspended.remove(process);
+	process.resume();
+	active.add(process);
+
+	balance();
+    }
+
+    /**
+     * Suspend running processes until their quotas fit in memory, starting
+     * with the one that has been running the longest, so that processes take
+     * turns. The last running process is never suspended. A suspended
+     * process stops the next time it misses in the TLB, and its frames are
+     * the first to be taken by other processes. Then resume the suspended
+     * processes whose quotas fit in what is left, longest suspended first.
+     * The caller must hold <tt>vmLock</tt>.
+     */
+    static void balance() {
+	int demand = demand();
+
+	while (demand > numPageable && active.size() > 1) {
+	    VMProcess process = active.removeFirst();
+
+	    demand -= process.quota;
+	    process.suspend();
+	    suspended.add(process);
+	    Machine.stats().numSuspensions++;
+	}
+
+	for (Iterator<VMProcess> i=suspended.iterator(); i.hasNext(); ) {
+	    VMProcess process = i.next();
+	    if (demand + process.quota > numPageable && !active.isEmpty())
+		continue;
+
+	    i.remove();
+	    process.resume();
+	    active.add(process);
+	    demand += process.quota;
+	}
+    }
+
+    private static int demand() {
+	int demand = 0;
+	for (VMProcess process : active)
+	    demand += process.quota;
+
+	return demand;
+    }
+
+    /**
+     * Sample the <tt>used</tt> bits of a process's frames, which hold every
+     * reference it made while it last ran, and clear them for the next
+     * sample. Called when the process loses the CPU, after its TLB entries
+     * have been saved, so at each timer interrupt that preempts it.
+     *
+     * @param	process	the process that has just lost the CPU.
+     * @param	now	the user ticks the process has run for.
+     * @return	the number of frames of the process used within the last
+     *		<tt>workingSetWindow</tt> ticks of its running time.
+     */
+    static int sampleWorkingSet(VMProcess process, long now) {
+	int workingSet = 0;
+
+	for (int ppn=0; ppn<frames.length; ppn++) {
+	    Frame frame = frames[ppn];
+	    if (frame.process != process)
+		continue;
+
+	    if (frame.entry.used) {
+		frame.entry.used = false;
+		frame.sampled = true;
+		frame.lastUse = now;
+	    }
+
+	    if (now - frame.lastUse < workingSetWindow)
+		workingSet++;
+	}
+
+	return workingSet;
+    }
+
+    /**
+     * Return the shared image of the specified executable, creating it if no
+     * running process is using the executable, and add a reference to it.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	name	the file name of the executable.
+     * @return	the shared image.
+     */
+    static Image acquireImage(String name) {
+	Image image = images.get(name);
+	if (image == null) {
+	    image = new Image(name, newSpaceID());
+	    images.put(name, image);
+	}
+
+	image.refCount++;
+	return image;
+    }
+
+    /**
+     * Drop a reference to a shared image. When the last process using it
+     * exits, its pages are freed. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	image	the shared image.
+     */
+    static void releaseImage(Image image) {
+	Lib.assertTrue(image.refCount > 0);
+
+	if (--image.refCount == 0) {
+	    freeFrames(image.spaceID);
+	    images.remove(image.name);
+	}
+    }
+
+    /**
+     * Return the frame holding the specified page of the specified address
+     * space, or <tt>null</tt> if the page is not resident. The caller must
+     * hold <tt>vmLock</tt>.
+     *
+     * @param	spaceID	the address space that owns the page.
+     * @param	vpn	the virtual page number.
+     * @return	the frame holding the page, or <tt>null</tt>.
+     */
+    static Frame lookup(int spaceID, int vpn) {
+	int ppn = hashAnchors[hash(spaceID, vpn)];
+	while (ppn != -1) {
+	    Frame frame = frames[ppn];
+	    if (frame.spaceID == spaceID && frame.entry.vpn == vpn)
+		return frame;
+
+	    ppn = frame.hashNext;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the frame the software TLB holds for the specified page of a
+     * process, if the frame still holds that page. The software TLB is a
+     * direct-mapped cache of recent translations, keyed by the process's
+     * address space and the virtual page, and consulted before the page is
+     * looked up in the inverted page table. Each entry remembers the address
+     * space the page was found in, which may be a shared one, and is stale
+     * once the frame holds a page of any other space.
+     *
+     * <p>
+     * This does not need <tt>vmLock</tt> or interrupts disabled: it is a
+     * single probe, and simulated time, and so preemption, cannot advance in
+     * the middle of it.
+     *
+     * @param	spaceID	the address space of the process.
+     * @param	vpn	the virtual page number.
+     * @return	the frame holding the page, or <tt>null</tt> if the software
+     *		TLB has no current entry for it.
+     */
+    static Frame probeSTLB(int spaceID, int vpn) {
+	int i = stlbIndex(spaceID, vpn);
+
+	Frame frame = stlbFrames[i];
+	if (frame == null || stlbOwners[i] != spaceID || stlbVPNs[i] != vpn ||
+	    frame.spaceID != stlbSpaces[i] || frame.entry.vpn != vpn ||
+	    frame.prefetched)
+	    return null;
+
+	Machine.stats().numSTLBHits++;
+	return frame;
+    }
+
+    /**
+     * Remember in the software TLB the frame through which a process maps the
+     * specified page. A process that starts to map the page through another
+     * frame of the same address space, as it does when it copies a page on
+     * write, must fill the entry again.
+     *
+     * @param	spaceID	the address space of the process.
+     * @param	vpn	the virtual page number.
+     * @param	frame	the mapped frame holding the page.
+     */
+    static void fillSTLB(int spaceID, int vpn, Frame frame) {
+	int i = stlbIndex(spaceID, vpn);
+
+	stlbFrames[i] = frame;
+	stlbOwners[i] = spaceID;
+	stlbVPNs[i] = vpn;
+	stlbSpaces[i] = frame.spaceID;
+    }
+
+    private static int stlbIndex(int spaceID, int vpn) {
+	return (spaceID*0x9E3779B1 + vpn) & (stlbFrames.length-1);
+    }
+
+    /**
+     * Allocate a frame, taking a free one if there is one and otherwise
+     * evicting the page chosen by the clock. The page evicted is one of the
+     * current process's own if it is at its quota. If the evicted page is dirty, its
+     * process writes it to swap before this returns. The frame is returned
+     * pinned, so that it cannot be chosen again while the caller fills it.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	a pinned, unmapped frame, or <tt>null</tt> if every frame is
+     *		pinned.
+     */
+    static Frame allocateFrame() {
+	if (numFree > 0) {
+	    Frame frame = frames[freeFrames[--numFree]];
+	    frame.pinned = true;
+	    return frame;
+	}
+
+	Frame frame = chooseVictim((VMProcess) UserKernel.currentProcess());
+	if (frame == null)
+	    return null;
+
+	VMProcess process = frame.process;
+	SharedSpace shared = frame.shared;
+	int vpn = frame.entry.vpn;
+	boolean dirty = isDirty(frame);
+
+	Lib.debug(dbgVM, "evicting " + (dirty ? "dirty" : "clean") + " page "
+		  + vpn + " of space " + frame.spaceID + " from frame "
+		  + frame.entry.ppn);
+
+	frame.pinned = true;
+	unmap(frame);
+
+	if (frame.prefetched && process != null)
+	    process.readAheadWasted();
+	if (dirty && shared != null)
+	    shared.pageOut(vpn, frame.entry.ppn);
+	else if (dirty)
+	    process.pageOut(vpn, frame.entry.ppn);
+
+	return frame;
+    }
+
+    /**
+     * Enter a filled frame into the inverted page table as holding the
+     * specified page, and unpin it. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	frame	the frame, as returned by <tt>allocateFrame()</tt>.
+     * @param	spaceID	the address space that owns the page.
+     * @param	process	the process that owns the page, or <tt>null</tt> if
+     *			the page belongs to a shared image.
+     * @param	vpn	the virtual page number.
+     * @param	readOnly	<tt>true</tt> if the page may not be written.
+     */
+    static void map(Frame frame, int spaceID, VMProcess process, int vpn,
+		    boolean readOnly) {
+	Lib.assertTrue(frame.pinned && frame.spaceID == -1);
+	Lib.assertTrue(process != null || readOnly);
+
+	frame.spaceID = spaceID;
+	frame.process = process;
+	frame.entry.vpn = vpn;
+	frame.entry.valid = true;
+	frame.entry.readOnly = readOnly;
+	frame.entry.used = true;
+	frame.entry.dirty = false;
+	frame.prefetched = false;
+	frame.sampled = false;
+	frame.lastUse = 0;
+	if (process != null) {
+	    process.residentPages++;
+	    frame.lastUse = process.virtualTime();
+	}
+
+	int bucket = hash(spaceID, vpn);
+	frame.hashNext = hashAnchors[bucket];
+	hashAnchors[bucket] = frame.entry.ppn;
+
+	frame.pinned = false;
+    }
+
+    /**
+     * Move a mapped frame to another address space, keeping its contents and
+     * its <tt>dirty</tt> bit. Any TLB entry for the frame is dropped. The
+     * caller must hold <tt>vmLock</tt>.
+     *
+     * @param	frame	the frame to move.
+     * @param	spaceID	the address space that now owns the page.
+     * @param	process	the process that now owns the page, or <tt>null</tt>
+     *			if the page is now shared.
+     * @param	readOnly	<tt>true</tt> if the page may not be written.
+     */
+    static void moveFrame(Frame frame, int spaceID, VMProcess process,
+			  boolean readOnly) {
+	boolean dirty = isDirty(frame);
+	int vpn = frame.entry.vpn;
+
+	frame.pinned = true;
+	unmap(frame);
+	map(frame, spaceID, process, vpn, readOnly);
+
+	frame.entry.dirty = dirty;
+    }
+
+    /**
+     * Return a mapped frame to the free list. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param	frame	the frame to free.
+     */
+    static void freeFrame(Frame frame) {
+	unmap(frame);
+	freeFrames[numFree++] = frame.entry.ppn;
+    }
+
+    /**
+     * Return every frame held by the specified address space to the free
+     * list. Called when a process exits, or when the last process using a
+     * shared image exits. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	spaceID	the address space whose frames to free.
+     */
+    static void freeFrames(int spaceID) {
+	for (int ppn=0; ppn<frames.length; ppn++) {
+	    Frame frame = frames[ppn];
+	    if (frame.spaceID == spaceID)
+		freeFrame(frame);
+	}
+    }
+
+    /**
+     * Return whether the page in the specified frame has been written since
+     * it was last read in or written out, including by a store that has so
+     * far only marked its TLB entry.
+     *
+     * @param	frame	a mapped frame.
+     * @return	<tt>true</tt> if the page is dirty.
+     */
+    static boolean isDirty(Frame frame) {
+	findTLBEntry(frame);
+
+	return frame.entry.dirty;
+    }
+
+    /**
+     * Clear the <tt>dirty</tt> bit of the specified frame and of its TLB
+     * entry, if any. Called once the page's contents are safe in swap.
+     *
+     * @param	frame	a mapped frame.
+     */
+    static void markClean(Frame frame) {
+	frame.entry.dirty = false;
+
+	int tlbIndex = findTLBEntry(frame);
+	if (tlbIndex != -1) {
+	    TranslationEntry entry = Machine.processor().readTLBEntry(tlbIndex);
+	    entry.dirty = false;
+	    Machine.processor().writeTLBEntry(tlbIndex, entry);
+	}
+    }
+
+    /**
+     * Load the specified frame's translation into the TLB. This replaces the
+     * entry for the same virtual page if there is one, such as the read-only
+     * entry for a page that was just copied on write; otherwise it replaces
+     * an invalid entry if there is one, and an entry chosen by the
+     * <tt>VMKernel.tlbReplacement</tt> policy if not.
+     *
+     * @param	frame	the resident frame to load.
+     */
+    static void loadTLB(Frame frame) {
+	loadTLB(frame.entry);
+    }
+
+    /**
+     * Map the specified page read-only to the zero frame in the TLB, in the
+     * same way as <tt>loadTLB()</tt>.
+     *
+     * @param	vpn	a page that reads as zeroes.
+     */
+    static void loadZeroPage(int vpn) {
+	loadTLB(new TranslationEntry(vpn, zeroFrame.entry.ppn, true, true,
+				     false, false));
+    }
+
+    private static void loadTLB(TranslationEntry translation) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	int victim = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn == translation.vpn) {
+		victim = i;
+		syncTLBEntry(victim);
+		break;
+	    }
+	    if (!entry.valid && victim == -1)
+		victim = i;
+	}
+
+	if (victim == -1) {
+	    victim = chooseTLBVictim();
+	    syncTLBEntry(victim);
+	}
+
+	processor.writeTLBEntry(victim, translation);
+    }
+
+    /**
+     * Invalidate the TLB entry for the specified page, if any, such as the
+     * read-only entry for a page the kernel has just copied on write on the
+     * process's behalf.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    static void invalidateTLB(int vpn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn == vpn) {
+		syncTLBEntry(i);
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Choose a valid TLB entry to replace. <tt>random</tt> picks any entry;
+     * <tt>fifo</tt> replaces the entries in turn, in the order the TLB was
+     * filled; <tt>nru</tt> prefers an entry not used since the <tt>used</tt>
+     * bits were last cleared, and a clean one among those, and clears the
+     * <tt>used</tt> bits once every entry has been used.
+     *
+     * @return	the index of the entry to replace.
+     */
+    private static int chooseTLBVictim() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	if (tlbReplacement == tlbRandom)
+	    return Lib.random(tlbSize);
+
+	if (tlbReplacement == tlbFIFO) {
+	    int victim = tlbHand;
+	    tlbHand = (tlbHand+1) % tlbSize;
+	    return victim;
+	}
+
+	int victim = -1, victimClass = 4;
+	for (int n=0; n<tlbSize; n++) {
+	    int i = (tlbHand+n) % tlbSize;
+	    TranslationEntry entry = processor.readTLBEntry(i);
+
+	    int entryClass = (entry.used ? 2 : 0) + (entry.dirty ? 1 : 0);
+	    if (entryClass < victimClass) {
+		victim = i;
+		victimClass = entryClass;
+	    }
+	}
+
+	if (victimClass >= 2) {
+	    // the frames keep the bits for the clock
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry entry = syncTLBEntry(i);
+		entry.used = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+
+	tlbHand = (victim+1) % tlbSize;
+	return victim;
+    }
+
+    /**
+     * Save the valid TLB entries, each tagged with the address space whose
+     * page it maps, into a process's TLB shadow, and invalidate the whole
+     * TLB. Called when the running process loses the CPU. The
+     * <tt>used</tt> and <tt>dirty</tt> bits go back to the frames, as for
+     * <tt>flushTLB()</tt>.
+     *
+     * @param	shadow	receives a copy of each TLB entry.
+     * @param	spaceIDs	receives the address space of each valid entry.
+     */
+    static void saveTLB(TranslationEntry[] shadow, int[] spaceIDs) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = syncTLBEntry(i);
+	    shadow[i] = entry;
+
+	    if (entry.valid) {
+		spaceIDs[i] = frames[entry.ppn].spaceID;
+
+		TranslationEntry invalid = new TranslationEntry(entry);
+		invalid.valid = false;
+		processor.writeTLBEntry(i, invalid);
+	    }
+	}
+    }
+
+    /**
+     * Reload the entries saved by <tt>saveTLB()</tt> that are still current
+     * into the empty TLB. An entry is stale if its page has since been
+     * evicted, moved to another frame, or moved to another address space, as
+     * when it is copied on write; stale entries are left invalid, to be
+     * refilled on demand. An entry for the zero frame is always current,
+     * since only the process itself can write the page, and it has not run.
+     *
+     * @param	shadow	the saved TLB entries.
+     * @param	spaceIDs	the address space of each saved entry.
+     * @return	the number of entries reloaded.
+     */
+    static int restoreTLB(TranslationEntry[] shadow, int[] spaceIDs) {
+	Processor processor = Machine.processor();
+	int restored = 0;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry saved = shadow[i];
+	    if (saved == null || !saved.valid)
+		continue;
+
+	    if (saved.ppn == zeroFrame.entry.ppn) {
+		processor.writeTLBEntry(i, saved);
+		restored++;
+		continue;
+	    }
+
+	    Frame frame = lookup(spaceIDs[i], saved.vpn);
+	    if (frame == null || frame.entry.ppn != saved.ppn ||
+		frame.entry.readOnly != saved.readOnly)
+		continue;
+
+	    processor.writeTLBEntry(i, frame.entry);
+	    restored++;
+	}
+
+	return restored;
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of every TLB entry into
+     * the frame it maps, and invalidate the whole TLB. Called when the
+     * running process loses the CPU.
+     */
+    static void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = syncTLBEntry(i);
+	    if (entry.valid) {
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of the specified TLB
+     * entry into the frame it maps.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the TLB entry.
+     */
+    private static TranslationEntry syncTLBEntry(int number) {
+	TranslationEntry entry = Machine.processor().readTLBEntry(number);
+
+	if (entry.valid && entry.ppn != zeroFrame.entry.ppn) {
+	    TranslationEntry frameEntry = frames[entry.ppn].entry;
+	    Lib.assertTrue(frameEntry.valid && frameEntry.vpn == entry.vpn);
+
+	    frameEntry.used |= entry.used;
+	    frameEntry.dirty |= entry.dirty;
+	}
+
+	return entry;
+    }
+
+    /**
+     * Find the TLB entry that maps the specified frame, if any, and copy its
+     * <tt>used</tt> and <tt>dirty</tt> bits into the frame.
+     *
+     * @param	frame	the frame.
+     * @return	the index of the TLB entry, or -1 if the frame is not in the
+     *		TLB.
+     */
+    private static int findTLBEntry(Frame frame) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.ppn == frame.entry.ppn) {
+		syncTLBEntry(i);
+		return i;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Choose a page to evict for the specified process. A process at its
+     * quota gives up one of its own pages. Otherwise the page comes from
+     * another process that has more than its share of memory, or from a
+     * shared image; only if there is none is any page taken.
+     *
+     * @param	requester	the process that needs a frame, or <tt>null</tt>.
+     * @return	the victim frame, or <tt>null</tt> if every frame is pinned.
+     */
+    private static Frame chooseVictim(VMProcess requester) {
+	Frame frame = null;
+	if (requester != null)
+	    frame = sweep(requester,
+			  requester.residentPages >= requester.quota);
+
+	if (frame == null)
+	    frame = sweep(null, false);
+
+	return frame;
+    }
+
+    /**
+     * Sweep the clock hand over the core map to choose a page to evict.
+     * Frames referenced since the last sweep have their <tt>used</tt> bit
+     * cleared and are passed over.
+     *
+     * @param	requester	the process that needs a frame, or <tt>null</tt>
+     *				to consider every page.
+     * @param	local	<tt>true</tt> to consider only the requester's pages,
+     *			<tt>false</tt> to consider only pages the requester may
+     *			take from others.
+     * @return	the victim frame, or <tt>null</tt> if no page qualifies.
+     */
+    private static Frame sweep(VMProcess requester, boolean local) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<frames.length*2; i++) {
+	    Frame frame = frames[clockHand];
+	    clockHand = (clockHand+1) % frames.length;
+
+	    if (frame.pinned || frame.spaceID == -1)
+		continue;
+
+	    if (requester != null) {
+		VMProcess owner = frame.process;
+		if (local ? owner != requester :
+		    owner == requester || (owner != null && !owner.suspended &&
+					   owner.residentPages <= owner.quota))
+		    continue;
+	    }
+
+	    int tlbIndex = findTLBEntry(frame);
+
+	    if (frame.entry.used || frame.sampled) {
+		if (frame.entry.used && frame.process != null)
+		    frame.lastUse = frame.process.virtualTime();
+
+		frame.entry.used = false;
+		frame.sampled = false;
+		if (tlbIndex != -1) {
+		    TranslationEntry entry = processor.readTLBEntry(tlbIndex);
+		    entry.used = false;
+		    processor.writeTLBEntry(tlbIndex, entry);
+		}
+		continue;
+	    }
+
+	    return frame;
+	}
+
+	return null;
+    }
+
+    /**
+     * Remove a frame from the inverted page table and the TLB.
+     *
+     * @param	frame	the frame to unmap.
+     */
+    private static void unmap(Frame frame) {
+	int tlbIndex = findTLBEntry(frame);
+	if (tlbIndex != -1) {
+	    TranslationEntry entry =
+		Machine.processor().readTLBEntry(tlbIndex);
+	    entry.valid = false;
+	    Machine.processor().writeTLBEntry(tlbIndex, entry);
+	}
+
+	int bucket = hash(frame.spaceID, frame.entry.vpn);
+	if (hashAnchors[bucket] == frame.entry.ppn) {
+	    hashAnchors[bucket] = frame.hashNext;
+	}
+	else {
+	    Frame previous = frames[hashAnchors[bucket]];
+	    while (previous.hashNext != frame.entry.ppn)
+		previous = frames[previous.hashNext];
+	    previous.hashNext = frame.hashNext;
+	}
+
+	if (frame.process != null)
+	    frame.process.residentPages--;
+
+	frame.spaceID = -1;
+	frame.process = null;
+	frame.shared = null;
+	frame.entry.valid = false;
+	frame.hashNext = -1;
+    }
+
+    private static int hash(int spaceID, int vpn) {
+	return (spaceID*0x9E3779B1 + vpn) & (hashAnchors.length-1);
+    }
+
+    /**
+     * A page of physical memory, and the virtual page it holds.
+     */
+    static class Frame {
+	Frame(int ppn) {
+	    entry = new TranslationEntry(-1, ppn, false, false, false, false);
+	}
+
+	/** The address space whose page this frame holds, or -1 if free. */
+	int spaceID = -1;
+	/**
+	 * The process whose page this frame holds, or <tt>null</tt> if the
+	 * frame is free or holds a shared page.
+	 */
+	VMProcess process = null;
+	/**
+	 * The pages shared after a fork that this frame's page belongs to, or
+	 * <tt>null</tt>.
+	 */
+	SharedSpace shared = null;
+	/**
+	 * The translation for the page held by this frame. The <tt>used</tt>
+	 * and <tt>dirty</tt> bits of a TLB entry for the page are copied here
+	 * when the entry leaves the TLB.
+	 */
+	TranslationEntry entry;
+	/** <tt>true</tt> while the frame is being filled or emptied. */
+	boolean pinned = false;
+	/**
+	 * <tt>true</tt> if the page was read ahead of need and has not been
+	 * used since.
+	 */
+	boolean prefetched = false;
+	/**
+	 * <tt>true</tt> if the page was used while its process last ran, as
+	 * seen by the last working set sample; the clock counts this as a
+	 * reference.
+	 */
+	boolean sampled = false;
+	/**
+	 * The running time of the owning process when the page was last seen
+	 * to be used.
+	 */
+	long lastUse = 0;
+	/** The next frame in the same hash bucket, or -1. */
+	int hashNext = -1;
+    }
+
+    /**
+     * The read-only pages of an executable, shared by every process running
+     * it. Images are found by file name, so an executable should not be
+     * changed while it is running.
+     */
+    static class Image {
+	Image(String name, int spaceID) {
+	    this.name = name;
+	    this.spaceID = spaceID;
+	}
+
+	/** The file name of the executable. */
+	final String name;
+	/** The address space holding the shared pages. */
+	final int spaceID;
+	/** The number of processes running the executable. */
+	int refCount = 0;
+    }
+
+    /**
+     * Guards the core map and the inverted page table. Held across the I/O
+     * needed to fill a frame, so that page faults are handled one at a time.
+     */
+    static Lock vmLock;
+    /** Holds the contents of dirty pages that have been evicted. */
+    static SwapFile swap;
+    /** The frame of zeroes that unwritten zero-fill pages are mapped to. */
+    static Frame zeroFrame;
+    /** The number of frames that can hold pages, not counting the zero frame. */
+    static int numPageable;
+
+    private static Frame[] frames;
+    private static int[] freeFrames;
+    private static int numFree = 0;
+    private static int[] hashAnchors;
+    /** The software TLB: the frame, owner, page and space of each entry. */
+    private static Frame[] stlbFrames;
+    private static int[] stlbOwners, stlbVPNs, stlbSpaces;
+    private static int clockHand = 0;
+    /** The next TLB entry to consider replacing. */
+    private static int tlbHand = 0;
+    private static int tlbReplacement;
+    private static int nextSpaceID = 0;
+    private static HashMap<String, Image> images = new HashMap<String, Image>();
+    /** The running processes, the one running the longest first. */
+    private static LinkedList<VMProcess> active = new LinkedList<VMProcess>();
+    /** The suspended processes, the one suspended the longest first. */
+    private static LinkedList<VMProcess> suspended =
+	new LinkedList<VMProcess>();
+
+    /** The smallest quota a process may have, in frames. */
+    static int minQuota;
+    /**
+     * A process that faults again within this many ticks of its own running
+     * time gains a frame.
+     */
+    static int faultInterval;
+    /**
+     * A page used within this many ticks of its process's running time is
+     * in the working set.
+     */
+    static int workingSetWindow;
+    /**
+     * The most ticks a suspended process waits before it runs again whether
+     * or not there is room for it.
+     */
+    static int suspendTicks;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final String swapName = "swap";
+
+    private static final int pageSize = Processor.pageSize;
+
+    private static final int tlbRandom = 0, tlbFIFO = 1, tlbNRU = 2;
     private static final char dbgVM = 'v';
 }
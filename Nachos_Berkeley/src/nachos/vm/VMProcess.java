@@ -5,8 +5,43 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is read in when the program is loaded. A page first comes into
+ * memory when the program touches it and misses in the TLB: COFF pages are
+ * read from the executable, and stack, argument and uninitialized data pages
+ * are mapped read-only to <tt>VMKernel</tt>'s zero frame until they are
+ * first written. A page that was dirty when evicted is read back from its
+ * swap slot instead.
+ * Read-only pages are shared with other processes running the same
+ * executable.
+ *
+ * <p>
+ * Initialized data is shared the same way until a process writes it: the
+ * shared copy is mapped read-only, and the first store to it raises a
+ * read-only exception, at which point the process gets a private copy of the
+ * page. <tt>fork()</tt> shares all of a process's pages with its child in the
+ * same way, so creating a process costs a copy only of the pages either
+ * process goes on to write.
+ *
+ * <p>
+ * <tt>mmap()</tt> maps an open file at any page-aligned address above the
+ * program's own pages; see <tt>MappedFile</tt>. A child of <tt>fork()</tt>
+ * inherits neither its parent's mappings nor its open files.
+ *
+ * <p>
+ * Each process is held to a quota of frames, which <tt>VMKernel</tt>
+ * adjusts by how often the process faults and by its working set, sampled
+ * each time the process loses the CPU. A process that the kernel suspends to
+ * keep the quotas within memory waits at its next TLB miss.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,40 +49,232 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	spaceID = VMKernel.newSpaceID();
+
+	int tlbSize = Machine.processor().getTLBSize();
+	tlbShadow = new TranslationEntry[tlbSize];
+	tlbSpaces = new int[tlbSize];
+
+	resumed = new Condition2(VMKernel.vmLock);
+    }
+
+    /**
+     * Execute the specified program with the specified arguments, sharing
+     * its read-only pages with any other process running it.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean execute(String name, String[] args) {
+	executable = name;
+
+	return super.execute(name, args);
     }
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The TLB is saved into this
+     * process's shadow and emptied for the next process.
      */
     public void saveState() {
 	super.saveState();
+
+	VMKernel.saveTLB(tlbShadow, tlbSpaces);
+
+	userTicks += Machine.stats().userTicks - restoredTicks;
+	running = false;
+
+	workingSet = VMKernel.sampleWorkingSet(this, userTicks);
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB was emptied when the last
+     * process lost the CPU. The entries this process had then are reloaded
+     * if their pages have not moved meanwhile, so it does not have to take a
+     * miss on each of them again; any others refill on demand.
      */
     public void restoreState() {
-	super.restoreState();
+	VMKernel.restoreTLB(tlbShadow, tlbSpaces);
+	Arrays.fill(tlbShadow, null);
+
+	restoredTicks = Machine.stats().userTicks;
+	running = true;
+    }
+
+    /**
+     * Return the number of user ticks this process has run for, which is the
+     * clock its working set and fault frequency are measured by.
+     *
+     * @return	the running time of this process.
+     */
+    long virtualTime() {
+	if (running)
+	    return userTicks + Machine.stats().userTicks - restoredTicks;
+	else
+	    return userTicks;
+    }
+
+    /**
+     * Mark this process suspended, and forget its saved TLB entries so that
+     * it takes a miss, and stops, soon after it next runs. Called by
+     * <tt>VMKernel.balance()</tt>.
+     */
+    void suspend() {
+	Lib.debug(dbgVM, "process " + processID + " suspended with quota "
+		  + quota);
+
+	suspended = true;
+	suspensions++;
+	Arrays.fill(tlbShadow, null);
+    }
+
+    /**
+     * Mark this process no longer suspended, and wake it if it is waiting to
+     * resume. Called by <tt>VMKernel</tt>, which holds <tt>vmLock</tt>.
+     */
+    void resume() {
+	suspended = false;
+	resumed.wake();
+    }
+
+    /**
+     * Read a null-terminated string from this process's virtual memory,
+     * bringing pages into memory as needed.
+     *
+     * @param	vaddr	the starting virtual address of the null-terminated
+     *			string.
+     * @param	maxLength	the maximum number of characters in the string,
+     *				not including the null terminator.
+     * @return	the string read, or <tt>null</tt> if no null terminator was
+     *		found.
+     */
+    public String readVirtualMemoryString(int vaddr, int maxLength) {
+	VMKernel.vmLock.acquire();
+	String string = super.readVirtualMemoryString(vaddr, maxLength);
+	VMKernel.vmLock.release();
+
+	return string;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, bringing pages into memory as needed.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	VMKernel.vmLock.acquire();
+	int amount = super.readVirtualMemory(vaddr, data, offset, length);
+	VMKernel.vmLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, bringing pages into memory and copying shared pages as needed.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	VMKernel.vmLock.acquire();
+	int amount = super.writeVirtualMemory(vaddr, data, offset, length);
+	VMKernel.vmLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Return the translation held by the frame of the specified page,
+     * bringing the page into memory, and giving this process a private copy
+     * of it if it is about to be written. The caller must hold
+     * <tt>vmLock</tt>, which the methods accessing virtual memory acquire.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	writing	<tt>true</tt> if the page is about to be written.
+     * @return	the translation for the page, or <tt>null</tt> if it cannot be
+     *		accessed.
+     */
+    protected TranslationEntry translate(int vpn, boolean writing) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+
+	if (vpn < 0 || (vpn >= numPages && findMapping(vpn) == null))
+	    return null;
+
+	VMKernel.Frame frame = pageIn(vpn);
+	if (frame != null && writing && frame.entry.readOnly) {
+	    frame = copyOnWrite(vpn);
+
+	    // the TLB may still map the page read-only
+	    if (frame != null)
+		VMKernel.invalidateTLB(vpn);
+	}
+	if (frame == null)
+	    return null;
+
+	return frame.entry;
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Nothing is loaded until it is needed, so a program may
+     * have more pages than there are physical pages.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+	forked = new SharedSpace[numPages];
+
+	VMKernel.vmLock.acquire();
+	image = VMKernel.acquireImage(executable);
+	VMKernel.admit(this);
+	VMKernel.vmLock.release();
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	Lib.debug(dbgVM, "process " + processID + ": " + tlbMisses
+		  + " TLB misses in " + userTicks + " user ticks ("
+		  + (userTicks > 0 ? tlbMisses*1000/userTicks : 0)
+		  + " per 1000)");
+
+	VMKernel.vmLock.acquire();
+	VMKernel.retire(this);
+	for (MappedFile mapping : new ArrayList<MappedFile>(mappings.values()))
+	    unmap(mapping);
+	VMKernel.freeFrames(spaceID);
+	VMKernel.releaseImage(image);
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (swapSlots[vpn] != -1)
+		VMKernel.swap.free(swapSlots[vpn]);
+	    if (forked[vpn] != null)
+		forked[vpn].release(vpn);
+	}
+	VMKernel.vmLock.release();
+
+	coff.close();
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +288,943 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
-	default:
-	    super.handleException(cause);
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    if (handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		return;
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    if (handleReadOnly(processor.readRegister(Processor.regBadVAddr)))
+		return;
+	    break;
+	}
+
+	super.handleException(cause);
+    }
+
+    /**
+     * Handle a syscall exception. Adds <tt>mmap()</tt>, <tt>fork()</tt> and
+     * <tt>munmap()</tt> to the syscalls handled by <tt>UserProcess</tt>, and
+     * fails <tt>read()</tt> and <tt>write()</tt> on a mapped file:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * </table>
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallFork:
+	    return handleFork();
+	case syscallMunmap:
+	    return handleMunmap(a0);
+
+	case syscallRead:
+	case syscallWrite:
+	    if (findMapping(getFile(a0)) != null)
+		return -1;
+	    break;
+
+	case syscallClose:
+	    MappedFile mapping = findMapping(getFile(a0));
+	    if (mapping != null) {
+		VMKernel.vmLock.acquire();
+		unmap(mapping);
+		VMKernel.vmLock.release();
+	    }
 	    break;
 	}
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
     }
-	
+
+    /**
+     * Handle the mmap() system call. The file is mapped at a page-aligned
+     * address above the program's own pages, and must not overlap another
+     * mapping. No page is read until it is touched. An empty file covers no
+     * pages, so it cannot be mapped.
+     *
+     * @return	the length of the file, or -1 on error.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = getFile(fd);
+	if (file == null || file.getFileSystem() == null ||
+	    findMapping(file) != null)
+	    return -1;
+
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0 ||
+	    Processor.pageFromAddress(vaddr) < numPages)
+	    return -1;
+
+	int length = file.length();
+	if (length <= 0)
+	    return -1;
+
+	MappedFile mapping = new MappedFile(fd, file,
+					    Processor.pageFromAddress(vaddr),
+					    length);
+
+	// the mapping must end within the address space
+	if ((long) vaddr + (long) mapping.numPages*pageSize > Integer.MAX_VALUE)
+	    return -1;
+
+	Map.Entry<Integer, MappedFile> below =
+	    mappings.floorEntry(mapping.firstVPN + mapping.numPages - 1);
+	if (below != null &&
+	    below.getValue().firstVPN + below.getValue().numPages >
+	    mapping.firstVPN)
+	    return -1;
+
+	Lib.debug(dbgVM, "mapping " + file.getName() + " at pages "
+		  + mapping.firstVPN + "-"
+		  + (mapping.firstVPN + mapping.numPages - 1));
+
+	VMKernel.vmLock.acquire();
+	mappings.put(mapping.firstVPN, mapping);
+	VMKernel.vmLock.release();
+
+	return length;
+    }
+
+    /**
+     * Handle the munmap() system call. The file descriptor stays open, and
+     * can be read and written again.
+     *
+     * @return	0 on success, or -1 if no mapping starts at the address.
+     */
+    private int handleMunmap(int vaddr) {
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	MappedFile mapping = mappings.get(Processor.pageFromAddress(vaddr));
+	if (mapping == null)
+	    return -1;
+
+	VMKernel.vmLock.acquire();
+	unmap(mapping);
+	VMKernel.vmLock.release();
+
+	return 0;
+    }
+
+    /**
+     * Remove a mapping, writing its dirty resident pages back to the file
+     * and freeing their frames. Pages that were evicted were written back
+     * then if they were dirty. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	mapping	the mapping to remove.
+     */
+    private void unmap(MappedFile mapping) {
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+
+	    VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	    if (frame == null)
+		continue;
+
+	    if (VMKernel.isDirty(frame)) {
+		frame.pinned = true;
+		mapping.pageOut(vpn, frame.entry.ppn);
+	    }
+
+	    VMKernel.freeFrame(frame);
+	}
+
+	mappings.remove(mapping.firstVPN);
+    }
+
+    /**
+     * Return the mapping that covers the specified page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the mapping, or <tt>null</tt> if the page is not mapped.
+     */
+    private MappedFile findMapping(int vpn) {
+	Map.Entry<Integer, MappedFile> entry = mappings.floorEntry(vpn);
+	if (entry == null || !entry.getValue().contains(vpn))
+	    return null;
+
+	return entry.getValue();
+    }
+
+    /**
+     * Return the mapping of the specified open file.
+     *
+     * @param	file	an open file, or <tt>null</tt>.
+     * @return	the mapping, or <tt>null</tt> if the file is not mapped.
+     */
+    private MappedFile findMapping(OpenFile file) {
+	if (file == null)
+	    return null;
+
+	for (MappedFile mapping : mappings.values()) {
+	    if (getFile(mapping.fileDescriptor) == file)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle the fork() system call. The child resumes after the syscall
+     * with the same registers, except that fork() returns 0 in the child.
+     *
+     * @return	the child's process ID in the parent, or -1 if the child could
+     *		not be created.
+     */
+    private int handleFork() {
+	Processor processor = Machine.processor();
+
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	registers[Processor.regV0] = 0;
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] += 4;
+
+	VMProcess child = fork(registers);
+	if (child == null)
+	    return -1;
+
+	return child.processID;
+    }
+
+    /**
+     * Create a child process running the same executable, whose address
+     * space starts out as a copy-on-write clone of this one, and start it
+     * with the specified user registers. Must be called by this process's
+     * own thread.
+     *
+     * <p>
+     * Every page this process has written or touched, resident or in swap,
+     * moves into a <tt>SharedSpace</tt> that both processes map read-only.
+     * Pages still shared from an earlier fork gain another sharer. Pages
+     * never touched stay behind the executable or zero-fill in both. No page
+     * is copied until one of the processes writes it.
+     *
+     * <p>
+     * The child does not inherit this process's open files. It starts with
+     * only the console, on descriptors 0 and 1, as a process started by
+     * <tt>exec()</tt> does, and it has no memory mappings.
+     *
+     * @param	registers	the user registers the child starts with.
+     * @return	the child, or <tt>null</tt> if it could not be created.
+     */
+    protected VMProcess fork(int[] registers) {
+	OpenFile executableFile = ThreadedKernel.fileSystem.open(executable,
+								  false);
+	if (executableFile == null)
+	    return null;
+
+	VMProcess child = (VMProcess) UserProcess.newUserProcess();
+	try {
+	    child.coff = new Coff(executableFile);
+	}
+	catch (EOFException e) {
+	    executableFile.close();
+	    child.closeFiles();
+	    return null;
+	}
+
+	child.executable = executable;
+	child.numPages = numPages;
+	child.swapSlots = new int[numPages];
+	Arrays.fill(child.swapSlots, -1);
+	child.forked = new SharedSpace[numPages];
+	child.registers = registers;
+
+	VMKernel.vmLock.acquire();
+
+	child.image = VMKernel.acquireImage(executable);
+	VMKernel.admit(child);
+
+	// the dirty bits of resident pages must be in their frames
+	VMKernel.flushTLB();
+
+	SharedSpace shared = new SharedSpace(numPages);
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (forked[vpn] != null) {
+		forked[vpn].share(vpn);
+		child.forked[vpn] = forked[vpn];
+		continue;
+	    }
+
+	    VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	    if (frame == null && swapSlots[vpn] == -1)
+		continue;
+
+	    shared.adopt(vpn, frame, swapSlots[vpn], 2);
+	    swapSlots[vpn] = -1;
+	    forked[vpn] = child.forked[vpn] = shared;
+	}
+
+	VMKernel.vmLock.release();
+
+	children.put(child.processID, child);
+	UserKernel.addProcess(child);
+	new UThread(child).setName(executable).fork();
+
+	return child;
+    }
+
+    /**
+     * Set the initial register values for a forked child to those its
+     * parent gave it; otherwise, set them up to run the program from the
+     * start.
+     */
+    public void initRegisters() {
+	if (registers == null) {
+	    super.initRegisters();
+	    return;
+	}
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<registers.length; i++)
+	    processor.writeRegister(i, registers[i]);
+
+	registers = null;
+    }
+
+    /**
+     * Give this process a private, writable copy of a page it shares, or a
+     * frame of its own for a page that reads as zeroes, following a store to
+     * its read-only mapping.
+     *
+     * @param	vaddr	the virtual address that was written.
+     * @return	<tt>true</tt> if the TLB now maps the address writable.
+     */
+    private boolean handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages)
+	    return false;
+
+	VMKernel.vmLock.acquire();
+
+	VMKernel.Frame frame = copyOnWrite(vpn);
+	if (frame != null)
+	    VMKernel.loadTLB(frame);
+
+	VMKernel.vmLock.release();
+
+	return frame != null;
+    }
+
+    /**
+     * Return the frame holding a private copy of the specified page, copying
+     * it from the frame it is shared through if necessary. If this process
+     * is the last one sharing a page from a fork, it takes the shared frame
+     * itself instead of copying it. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	vpn	the virtual page number, which must be less than
+     *			<tt>numPages</tt>.
+     * @return	the frame holding the private page, or <tt>null</tt> if the
+     *		page belongs to a read-only section or no frame could be found.
+     */
+    private VMKernel.Frame copyOnWrite(int vpn) {
+	VMKernel.Frame source = pageIn(vpn);
+	if (source == null || !source.entry.readOnly)
+	    return source;
+
+	CoffSection section = findSection(vpn);
+	if (section != null && section.isReadOnly())
+	    return null;
+
+	if (source == VMKernel.zeroFrame)
+	    return zeroFill(vpn);
+
+	SharedSpace shared = forked[vpn];
+	if (shared != null && shared.getSharers(vpn) == 1) {
+	    Lib.debug(dbgVM, "page " + vpn + " taken from frame "
+		      + source.entry.ppn);
+
+	    VMKernel.moveFrame(source, spaceID, this, false);
+	    source.entry.dirty = true;
+
+	    forked[vpn] = null;
+	    shared.release(vpn);
+
+	    VMKernel.fillSTLB(spaceID, vpn, source);
+	    return source;
+	}
+
+	source.pinned = true;
+	VMKernel.Frame frame = VMKernel.allocateFrame();
+	source.pinned = false;
+	if (frame == null)
+	    return null;
+
+	Lib.debug(dbgVM, "page " + vpn + " copied from frame "
+		  + source.entry.ppn + " to frame " + frame.entry.ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, source.entry.ppn*pageSize,
+			 memory, frame.entry.ppn*pageSize, pageSize);
+
+	VMKernel.map(frame, spaceID, this, vpn, false);
+	frame.entry.dirty = true;
+
+	if (shared != null) {
+	    forked[vpn] = null;
+	    shared.release(vpn);
+	}
+
+	VMKernel.fillSTLB(spaceID, vpn, frame);
+	return frame;
+    }
+
+    /**
+     * Give a page that reads as zeroes a frame of its own, on its first
+     * write. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the zeroed frame now holding the page, or <tt>null</tt> if no
+     *		frame could be found.
+     */
+    private VMKernel.Frame zeroFill(int vpn) {
+	VMKernel.Frame frame = VMKernel.allocateFrame();
+	if (frame == null)
+	    return null;
+
+	int ppn = frame.entry.ppn;
+	Lib.debug(dbgVM, "page " + vpn + " <- zeroes into frame " + ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+
+	VMKernel.map(frame, spaceID, this, vpn, false);
+
+	VMKernel.fillSTLB(spaceID, vpn, frame);
+	return frame;
+    }
+
+    /**
+     * Load the translation for the specified address into the TLB, first
+     * bringing the page into memory if it is not resident.
+     *
+     * <p>
+     * The software TLB is tried first, so that a miss on a page this process
+     * has recently used costs one probe. Every other miss that finds the page
+     * fills the software TLB.
+     *
+     * <p>
+     * A miss on a resident page needs no I/O, so it is handled with
+     * interrupts disabled instead of waiting for <tt>vmLock</tt>. Otherwise a
+     * process would give up the CPU, and with it every TLB entry, each time
+     * another process was paging, and could do no more than refill a single
+     * entry each time it ran. A page that reads as zeroes is mapped to the
+     * zero frame the same way. A suspended process takes neither shortcut,
+     * and waits here until it is resumed.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     * @return	<tt>true</tt> if the TLB now maps the address.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	tlbMisses++;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	if (!suspended) {
+	    VMKernel.Frame cached = VMKernel.probeSTLB(spaceID, vpn);
+	    if (cached != null) {
+		VMKernel.loadTLB(cached);
+		return true;
+	    }
+	}
+
+	if (vpn >= numPages && findMapping(vpn) == null)
+	    return false;
+
+	if (!suspended) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    CoffSection section = findSection(vpn);
+	    boolean zero = false;
+
+	    VMKernel.Frame resident = findResident(vpn, section);
+	    if (resident != null) {
+		VMKernel.loadTLB(resident);
+		VMKernel.fillSTLB(spaceID, vpn, resident);
+	    }
+	    else if (readsAsZero(vpn, section)) {
+		VMKernel.loadZeroPage(vpn);
+		zero = true;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+
+	    if (resident != null || zero)
+		return true;
+	}
+
+	VMKernel.vmLock.acquire();
+
+	waitWhileSuspended();
+
+	VMKernel.Frame frame = pageIn(vpn);
+	if (frame == VMKernel.zeroFrame) {
+	    VMKernel.loadZeroPage(vpn);
+	}
+	else if (frame != null) {
+	    VMKernel.loadTLB(frame);
+	    VMKernel.fillSTLB(spaceID, vpn, frame);
+	}
+
+	VMKernel.vmLock.release();
+
+	return frame != null;
+    }
+
+    /**
+     * Return the frame holding the specified page, reading the page in if it
+     * is not resident. The caller must hold <tt>vmLock</tt>.
+     *
+     * <p>
+     * Faults on consecutive pages make the read-ahead window grow, so that
+     * the pages following a faulting page of the same COFF section, or in the
+     * following swap slots, are read in by the same operation. The window
+     * shrinks when a page read ahead is evicted without having been used,
+     * and closes when the faults stop being sequential.
+     *
+     * <p>
+     * Each fault adjusts this process's frame quota, which may suspend it
+     * until there is room for it.
+     *
+     * @param	vpn	the virtual page number of a page of the program or of
+     *			a mapped file.
+     * @return	the frame holding the page, which is the zero frame if the
+     *		page reads as zeroes, or <tt>null</tt> if no frame could be
+     *		found for it.
+     */
+    private VMKernel.Frame pageIn(int vpn) {
+	CoffSection section = findSection(vpn);
+
+	VMKernel.Frame frame = findResident(vpn, section);
+	if (frame != null)
+	    return frame;
+
+	if (readsAsZero(vpn, section))
+	    return VMKernel.zeroFrame;
+
+	// another process may have read the page in while this one waited
+	if (adjustQuota()) {
+	    frame = findResident(vpn, section);
+	    if (frame != null)
+		return frame;
+	}
+
+	if (vpn >= numPages)
+	    return pageInMapped(vpn);
+
+	if (forked[vpn] != null)
+	    return forked[vpn].pageIn(vpn);
+
+	int space = sharedSpaceOf(vpn, section);
+	if (space == -1)
+	    space = spaceID;
+
+	if (vpn == lastFault+1)
+	    readAhead = Math.min(Math.max(readAhead*2, 1), maxReadAhead);
+	else
+	    readAhead = 0;
+	lastFault = vpn;
+
+	frame = VMKernel.allocateFrame();
+	if (frame == null) {
+	    Lib.debug(dbgVM, "no frame for page " + vpn);
+	    return null;
+	}
+
+	int ppn = frame.entry.ppn;
+	boolean readOnly = (space != spaceID);
+
+	int slot = swapSlots[vpn];
+
+	VMKernel.Frame[] batch = new VMKernel.Frame[1+readAhead];
+	int[] ppns = new int[1+readAhead];
+	int count = 1;
+	batch[0] = frame;
+	ppns[0] = ppn;
+
+	if (slot != -1 || (section != null && section.isInitialzed())) {
+	    while (count <= readAhead &&
+		   canReadAhead(vpn+count, space, section, slot, count)) {
+		batch[count] = VMKernel.allocateFrame();
+		if (batch[count] == null)
+		    break;
+
+		ppns[count] = batch[count].entry.ppn;
+		count++;
+	    }
+	}
+
+	if (slot != -1) {
+	    Lib.debug(dbgVM, "pages " + vpn + "-" + (vpn+count-1)
+		      + " <- swap slot " + slot + " into frame " + ppn);
+
+	    VMKernel.swap.read(slot, ppns, count);
+	}
+	else {
+	    Lib.debug(dbgVM, "pages " + vpn + "-" + (vpn+count-1) + " <- "
+		      + section.getName() + " into frame " + ppn);
+
+	    section.loadPages(vpn - section.getFirstVPN(), ppns, count);
+	}
+
+	VMProcess owner = (space == spaceID) ? this : null;
+	VMKernel.map(frame, space, owner, vpn, readOnly);
+	for (int i=1; i<count; i++) {
+	    VMKernel.map(batch[i], space, owner, vpn+i, readOnly);
+	    batch[i].prefetched = true;
+	    batch[i].entry.used = false;
+	}
+	Machine.stats().numReadAheads += count-1;
+
+	return frame;
+    }
+
+    /**
+     * Adjust this process's frame quota by how long it has run since its last
+     * page fault. A process faulting again within
+     * <tt>VMKernel.faultInterval</tt> ticks gains a frame; otherwise its quota
+     * shrinks to its working set. The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if the new quota got this process suspended, so
+     *		that it released <tt>vmLock</tt> while it waited.
+     */
+    private boolean adjustQuota() {
+	long now = virtualTime();
+
+	if (now - lastFaultTime < VMKernel.faultInterval)
+	    quota = Math.min(quota+1, VMKernel.numPageable);
+	else
+	    quota = Math.max(Math.min(quota, workingSet), VMKernel.minQuota);
+	lastFaultTime = now;
+
+	VMKernel.balance();
+	return waitWhileSuspended();
+    }
+
+    /**
+     * If this process is suspended, wait until <tt>VMKernel.balance()</tt>
+     * finds room for it, or for at most <tt>VMKernel.suspendTicks</tt>, after
+     * which it resumes even if other processes must be suspended in its
+     * place. A thread forked here sleeps on the alarm until the deadline and
+     * resumes this process if the same suspension is still in force. The
+     * caller must hold <tt>vmLock</tt>, which is released while waiting.
+     *
+     * @return	<tt>true</tt> if this process waited.
+     */
+    private boolean waitWhileSuspended() {
+	if (!suspended)
+	    return false;
+
+	Lib.debug(dbgVM, "process " + processID + " waiting to resume");
+
+	final int suspension = suspensions;
+	new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(VMKernel.suspendTicks);
+
+		    VMKernel.vmLock.acquire();
+		    if (suspended && suspensions == suspension)
+			VMKernel.resume(VMProcess.this);
+		    VMKernel.vmLock.release();
+		}
+	    }).setName("resume deadline " + processID).fork();
+
+	while (suspended)
+	    resumed.sleep();
+
+	return true;
+    }
+
+    /**
+     * Read a page of a mapped file into a new frame. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param	vpn	the virtual page number of a mapped page.
+     * @return	the frame holding the page, or <tt>null</tt> if no frame could
+     *		be found for it.
+     */
+    private VMKernel.Frame pageInMapped(int vpn) {
+	VMKernel.Frame frame = VMKernel.allocateFrame();
+	if (frame == null) {
+	    Lib.debug(dbgVM, "no frame for page " + vpn);
+	    return null;
+	}
+
+	findMapping(vpn).pageIn(vpn, frame.entry.ppn);
+	VMKernel.map(frame, spaceID, this, vpn, false);
+
+	return frame;
+    }
+
+    /**
+     * Return the frame holding the specified page if it is resident, noting
+     * the use of a page that was read ahead. A mapped frame always holds the
+     * page's contents, even while another thread holds <tt>vmLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	section	the section containing the page, or <tt>null</tt>.
+     * @return	the frame holding the page, or <tt>null</tt>.
+     */
+    private VMKernel.Frame findResident(int vpn, CoffSection section) {
+	VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	if (frame == null) {
+	    int space = sharedSpaceOf(vpn, section);
+	    if (space != -1)
+		frame = VMKernel.lookup(space, vpn);
+	}
+
+	if (frame != null && frame.prefetched) {
+	    frame.prefetched = false;
+	    lastFault = vpn;
+	    Machine.stats().numReadAheadHits++;
+	}
+
+	return frame;
+    }
+
+    /**
+     * Return whether a page that is not resident reads as zeroes: a page of
+     * the stack, the arguments or uninitialized data that has never been
+     * written, or whose frame was evicted before it was written.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	section	the section containing the page, or <tt>null</tt>.
+     * @return	<tt>true</tt> if the page can be mapped to the zero frame.
+     */
+    private boolean readsAsZero(int vpn, CoffSection section) {
+	if (vpn >= numPages || forked[vpn] != null || swapSlots[vpn] != -1)
+	    return false;
+
+	return section == null ||
+	    (!section.isInitialzed() && !section.isReadOnly());
+    }
+
+    /**
+     * Return the address space through which this process shares the
+     * specified page, or -1 if the page is private. Pages of read-only
+     * sections always belong to the executable's image, as do pages of
+     * initialized data that this process has never written. Mapped pages are
+     * always private.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	section	the section containing the page, or <tt>null</tt>.
+     * @return	the shared space holding the page, or -1.
+     */
+    private int sharedSpaceOf(int vpn, CoffSection section) {
+	if (vpn >= numPages)
+	    return -1;
+
+	if (forked[vpn] != null)
+	    return forked[vpn].spaceID;
+
+	if (section == null)
+	    return -1;
+	if (section.isReadOnly())
+	    return image.spaceID;
+	if (section.isInitialzed() && swapSlots[vpn] == -1)
+	    return image.spaceID;
+
+	return -1;
+    }
+
+    /**
+     * Return whether a page can be read in by the same operation as a
+     * faulting page <i>distance</i> pages before it: it must not be resident,
+     * and must come from the same swap cluster or, if it has never been
+     * swapped out, the same COFF section.
+     */
+    private boolean canReadAhead(int vpn, int space, CoffSection section,
+				 int slot, int distance) {
+	if (vpn >= numPages || forked[vpn] != null ||
+	    VMKernel.lookup(spaceID, vpn) != null ||
+	    VMKernel.lookup(space, vpn) != null)
+	    return false;
+
+	if (slot != -1)
+	    return swapSlots[vpn] == slot + distance;
+	else
+	    return swapSlots[vpn] == -1 &&
+		vpn < section.getFirstVPN() + section.getLength();
+    }
+
+    /**
+     * Called when a page read ahead of need is evicted without having been
+     * used. Halves the read-ahead window.
+     */
+    void readAheadWasted() {
+	readAhead /= 2;
+    }
+
+    /**
+     * Write an evicted dirty page to swap. Dirty pages resident on either side
+     * of it are written in the same operation and stay resident, now clean,
+     * so that a later eviction of them costs no I/O. A page keeps its swap
+     * slot until the process exits, and is written back to the same slot
+     * each time it is evicted dirty. A page of a mapped file is written back
+     * to the file instead. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	vpn	the evicted page, which has already been unmapped.
+     * @param	ppn	the frame still holding its contents.
+     */
+    void pageOut(int vpn, int ppn) {
+	if (vpn >= numPages) {
+	    findMapping(vpn).pageOut(vpn, ppn);
+	    return;
+	}
+
+	int slot = swapSlots[vpn];
+
+	int first = vpn, last = vpn;
+	while (last-first+1 < maxCluster && canCluster(last+1, vpn, slot))
+	    last++;
+	while (last-first+1 < maxCluster && canCluster(first-1, vpn, slot))
+	    first--;
+
+	int count = last-first+1;
+	int firstSlot;
+	if (slot == -1) {
+	    firstSlot = VMKernel.swap.allocate(count);
+	    for (int i=0; i<count; i++)
+		swapSlots[first+i] = firstSlot + i;
+	}
+	else {
+	    firstSlot = slot - (vpn-first);
+	}
+
+	Lib.debug(dbgVM, "pages " + first + "-" + last + " -> swap slots "
+		  + firstSlot + "-" + (firstSlot+count-1));
+
+	VMKernel.Frame[] cluster = new VMKernel.Frame[count];
+	int[] ppns = new int[count];
+	for (int i=0; i<count; i++) {
+	    if (first+i == vpn) {
+		ppns[i] = ppn;
+	    }
+	    else {
+		cluster[i] = VMKernel.lookup(spaceID, first+i);
+		cluster[i].pinned = true;
+		VMKernel.markClean(cluster[i]);
+		ppns[i] = cluster[i].entry.ppn;
+	    }
+	}
+
+	VMKernel.swap.write(firstSlot, ppns, count);
+
+	for (int i=0; i<count; i++) {
+	    if (cluster[i] != null)
+		cluster[i].pinned = false;
+	}
+    }
+
+    /**
+     * Return whether a page can be written to swap alongside an evicted page:
+     * it must be resident, dirty and not pinned, and its slot must follow on
+     * from the evicted page's.
+     */
+    private boolean canCluster(int vpn, int victim, int victimSlot) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.Frame frame = VMKernel.lookup(spaceID, vpn);
+	if (frame == null || frame.pinned || !VMKernel.isDirty(frame))
+	    return false;
+
+	if (victimSlot == -1)
+	    return swapSlots[vpn] == -1;
+	else
+	    return swapSlots[vpn] != -1 &&
+		swapSlots[vpn] == victimSlot + (vpn-victim);
+    }
+
+    /**
+     * Return the COFF section containing the specified page, or
+     * <tt>null</tt> if the page belongs to the stack or the arguments.
+     */
+    private CoffSection findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /** Identifies this address space in the inverted page table. */
+    final int spaceID;
+
+    /** The swap slot of each page, or -1 if it has never been swapped. */
+    private int[] swapSlots;
+
+    /** The page of the last fault, or of the last read-ahead page used. */
+    private int lastFault = -2;
+    /** The number of pages to read ahead of the next sequential fault. */
+    private int readAhead = 0;
+
+    /** The pages shared with a parent or child, indexed by page number. */
+    private SharedSpace[] forked;
+    /** The registers a forked child starts with, until it starts. */
+    private int[] registers = null;
+    /** The name of the executable this process is running. */
+    private String executable;
+    /** The read-only pages of the executable. */
+    private VMKernel.Image image;
+
+    /** The TLB entries this process had when it last lost the CPU. */
+    private TranslationEntry[] tlbShadow;
+    /** The address space of each entry in <tt>tlbShadow</tt>. */
+    private int[] tlbSpaces;
+    /** The number of TLB misses this process has taken. */
+    private int tlbMisses = 0;
+    /** The user ticks this process has run for, up to its last switch. */
+    private long userTicks = 0;
+    private long restoredTicks = 0;
+    private boolean running = false;
+
+    /** The number of frames this process may hold before replacing its own. */
+    int quota = 0;
+    /** The number of frames holding pages of this process. */
+    int residentPages = 0;
+    /** <tt>true</tt> while this process is suspended to free memory. */
+    boolean suspended = false;
+    /** The number of times this process has been suspended. */
+    private int suspensions = 0;
+    /** Signalled on <tt>vmLock</tt> when this process is resumed. */
+    private Condition2 resumed;
+    /** The number of pages in the last working set sample. */
+    private int workingSet = 0;
+    /** The running time of this process at its last page fault. */
+    private long lastFaultTime = 0;
+
+    /** The files mapped into this address space, by first page. */
+    private TreeMap<Integer, MappedFile> mappings =
+	new TreeMap<Integer, MappedFile>();
+
+    /** The most pages written to swap in one operation. */
+    private static final int maxCluster = 8;
+    /** The largest read-ahead window, in pages. */
+    private static final int maxReadAhead = 8;
+
+    private static final int syscallMmap = 10, syscallFork = 13,
+	syscallMunmap = 14;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';